@@ -9,7 +9,13 @@ import org.junit.runners.Suite.SuiteClasses;
     ConstantPopIntegratedTest.class,
     ConstantPopulationTest.class,
     NetworkParserTest.class,
-    BirthHybridizationTest.class
+    BirthHybridizationTest.class,
+    MultispeciesCoalescentTest.class,
+    RebuildEmbeddingTest.class,
+    NetworkBranchCountTest.class,
+    NewickWriterTest.class,
+    EmbeddedTreeTest.class,
+    NetworkTopologyTest.class
 })
 
 public class AllTests {
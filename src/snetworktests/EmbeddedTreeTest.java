@@ -0,0 +1,130 @@
+package snetworktests;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Embedding;
+
+public class EmbeddedTreeTest extends NetworkTestHelper {
+    final int traversalNodeCount = 6;
+
+    // change a few directions, sometimes more than fit in the rows so far, or start again from an empty embedding
+    private void editEmbedding(EmbeddedTree geneTree, Random random) {
+        final Embedding embedding = geneTree.getEditableEmbedding();
+        if (random.nextInt(5) == 0)
+            embedding.reset(traversalNodeCount);
+        final int nEdits = 1 + random.nextInt(random.nextInt(4) == 0 ? 20 : 3);
+        for (int k = 0; k < nEdits; k++) {
+            final int value = random.nextInt(4) == 0 ? -1 : random.nextInt(8);
+            embedding.setDirection(random.nextInt(embedding.geneNodeCount), random.nextInt(traversalNodeCount), value);
+        }
+        embedding.probability = random.nextDouble();
+    }
+
+    private void checkEmbedding(String expected, double expectedProbability, EmbeddedTree geneTree) {
+        assertEquals(expected, geneTree.embedding.toString());
+        assertEquals(expectedProbability, geneTree.embedding.probability, 0.0);
+    }
+
+    /* The embeddings are compared with the current and stored embeddings expected if store() and restore()
+       copied the embedding, as they did before the embedding was copy-on-write. */
+    @Test
+    public void testCopyOnWrite() {
+        Random random = new Random(1);
+        EmbeddedTree geneTree = parseGeneTree(newickGeneTrees[0]);
+        geneTree.getEditableEmbedding().reset(traversalNodeCount);
+        geneTree.store();
+        String current = geneTree.embedding.toString(), stored = current;
+        double currentProbability = geneTree.embedding.probability, storedProbability = currentProbability;
+
+        for (int step = 0; step < 2000; step++) {
+            final int move = random.nextInt(7);
+            if (move < 2) {
+                editEmbedding(geneTree, random);
+                current = geneTree.embedding.toString();
+                currentProbability = geneTree.embedding.probability;
+            } else if (move == 2) {
+                geneTree.store();
+                stored = current;
+                storedProbability = currentProbability;
+            } else if (move == 3) {
+                geneTree.restore();
+                current = stored;
+                currentProbability = storedProbability;
+            } else if (move == 4) {
+                // a copy is independent of the original
+                final EmbeddedTree copy = geneTree.copy();
+                checkEmbedding(current, currentProbability, copy);
+                editEmbedding(copy, random);
+                checkEmbedding(current, currentProbability, geneTree);
+                final String copied = copy.embedding.toString();
+                final double copiedProbability = copy.embedding.probability;
+                editEmbedding(geneTree, random);
+                current = geneTree.embedding.toString();
+                currentProbability = geneTree.embedding.probability;
+                checkEmbedding(copied, copiedProbability, copy);
+            } else if (move == 5) {
+                // assign the embeddings from a changed copy, which is independent afterwards
+                final EmbeddedTree other = geneTree.copy();
+                editEmbedding(other, random);
+                current = other.embedding.toString();
+                currentProbability = other.embedding.probability;
+                geneTree.assignFrom(other);
+                editEmbedding(other, random);
+            } else {
+                // assign the embeddings to a changed copy, which is independent afterwards
+                final EmbeddedTree other = geneTree.copy();
+                editEmbedding(other, random);
+                geneTree.assignTo(other);
+                checkEmbedding(current, currentProbability, other);
+                editEmbedding(other, random);
+            }
+            checkEmbedding(current, currentProbability, geneTree);
+        }
+    }
+
+    private void checkDirections(int[] expected, Embedding embedding) {
+        for (int r = 0; r < embedding.geneNodeCount; r++) {
+            for (int i = 0; i < embedding.traversalNodeCount; i++)
+                assertEquals(expected[r * embedding.traversalNodeCount + i], embedding.getDirection(r, i));
+        }
+        assertArrayEquals(expected, embedding.getEmbedding());
+    }
+
+    /* The embedding is compared with a matrix, while a few rows get many more directions than the others. */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testRows() {
+        Random random = new Random(2);
+        final int geneNodeCount = 9, wideTraversalNodeCount = 40;
+        final Embedding embedding = new Embedding(geneNodeCount, wideTraversalNodeCount);
+        final int[] expected = new int[geneNodeCount * wideTraversalNodeCount];
+        Arrays.fill(expected, -1);
+
+        for (int step = 0; step < 3000; step++) {
+            final int row = random.nextInt(3) == 0 ? random.nextInt(geneNodeCount) : random.nextInt(2);
+            final int traversalNode = random.nextInt(wideTraversalNodeCount);
+            final int value = random.nextInt(5) == 0 ? -1 : random.nextInt(8);
+            embedding.setDirection(row, traversalNode, value);
+            expected[row * wideTraversalNodeCount + traversalNode] = value;
+            if (random.nextInt(100) == 0) {
+                embedding.clearDirections(row);
+                Arrays.fill(expected, row * wideTraversalNodeCount, (row + 1) * wideTraversalNodeCount, -1);
+            }
+            if (step % 100 == 0) {
+                checkDirections(expected, embedding);
+                // copies into new and into reused buffers
+                checkDirections(expected, new Embedding(embedding));
+                final Embedding copy = new Embedding(geneNodeCount + step % 3, 1);
+                copy.copyFrom(embedding);
+                checkDirections(expected, copy);
+                copy.setDirection(0, 0, 7);
+                checkDirections(expected, embedding);
+            }
+        }
+    }
+}
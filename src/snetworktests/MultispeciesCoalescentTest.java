@@ -0,0 +1,221 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.ConstantPopIntegrated;
+import speciesnetwork.ConstantPopulation;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.NetworkParser;
+import speciesnetwork.PopulationSizeModel;
+import speciesnetwork.operators.*;
+
+public class MultispeciesCoalescentTest extends NetworkTestHelper {
+    // a third gene tree, with A and B coalescing above both of their common ancestors in the first species network
+    final String newickGeneTree3 = "(((a1:0.3,b1:0.3):0.2,(a2:0.4,b3:0.4):0.1):0.1,(b2:0.45,c1:0.45):0.15)";
+    final int chainLength = 1000;
+    final double allowedError = 1e-9;
+
+    NetworkParser speciesNetwork;
+    List<EmbeddedTree> geneTrees;
+    RealParameter popSizes;
+
+    /* Multiplies a random element of the parameter by a random factor. */
+    public static class ParameterScaler extends Operator {
+        public final Input<RealParameter> parameterInput =
+                new Input<>("parameter", "The parameter to scale.", Validate.REQUIRED);
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            final RealParameter parameter = parameterInput.get();
+            final int i = Randomizer.nextInt(parameter.getDimension());
+            final double scale = Math.exp(Randomizer.nextDouble() - 0.5);
+            parameter.setValue(i, parameter.getValue(i) * scale);
+            return Math.log(scale);
+        }
+    }
+
+    /* The same model, passed the coalescent times instead of the sufficient statistics. */
+    public static class ConstantPopulationTimes extends ConstantPopulation {
+        @Override
+        public boolean usesSufficientStatistics() {
+            return false;
+        }
+    }
+
+    private void initialize(String newickSpeciesNetwork) {
+        speciesNetwork = parseNetworkWithTaxa(newickSpeciesNetwork);
+        geneTrees = parseGeneTrees(newickGeneTrees[0], newickGeneTrees[1], newickGeneTree3);
+        // the gene trees have different ploidies
+        geneTrees.get(1).ploidy = 1.0;
+        RebuildEmbedding rebuildOperator = new RebuildEmbedding();
+        rebuildOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "weight", 1.0);
+        assertTrue(rebuildOperator.rebuildEmbedding());
+
+        popSizes = new RealParameter();
+        popSizes.initByName("value", "0.1");
+    }
+
+    // a constant population model with its own copy of the population sizes, which are resized by the coalescent
+    private PopulationSizeModel copyConstantPopulation() {
+        ConstantPopulation populationModel = new ConstantPopulation();
+        populationModel.initByName("popSizes", new RealParameter(popSizes.getValues()));
+        return populationModel;
+    }
+
+    // the log probability calculated from scratch by a new coalescent
+    private double calculateFullLogP(PopulationSizeModel populationModel) {
+        MultispeciesCoalescent fullMSC = new MultispeciesCoalescent();
+        fullMSC.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "populationModel", populationModel);
+        return fullMSC.calculateLogP();
+    }
+
+    private List<Operator> generateOperators() {
+        List<Operator> networkOperators = new ArrayList<>();
+        networkOperators.add(new NodeUniform());
+        networkOperators.add(new GammaProbUniform());
+        networkOperators.add(new FlipReticulation());
+        networkOperators.add(new RelocateBranch());
+        networkOperators.add(new DeleteReticulation());
+        List<Operator> operators = new ArrayList<>();
+        for (Operator networkOperator : networkOperators) {
+            networkOperator.initByName("speciesNetwork", speciesNetwork, "weight", 1.0);
+            RebuildEmbedding rebuildOperator = new RebuildEmbedding();
+            rebuildOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees,
+                    "operator", networkOperator, "weight", 1.0);
+            operators.add(rebuildOperator);
+        }
+        // move the gene tree nodes along with the species nodes
+        CoordinatedNodeUniform coordinatedOperator = new CoordinatedNodeUniform();
+        coordinatedOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "weight", 1.0);
+        operators.add(coordinatedOperator);
+        // change the embeddings only
+        RebuildEmbedding rebuildOperator = new RebuildEmbedding();
+        rebuildOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "weight", 1.0);
+        operators.add(rebuildOperator);
+        return operators;
+    }
+
+    /* Run a chain of proposals, each accepted or rejected at random, and compare the log probability calculated
+       by the coalescent caching the statistics of the gene trees and the log probabilities of the species branches
+       with the one calculated from scratch, after each proposal and after each restore. */
+    private void checkChain(MultispeciesCoalescent msc, List<StateNode> stateNodes, List<Operator> operators,
+                            Supplier<PopulationSizeModel> fullPopulationModel) {
+        State state = new State();
+        for (StateNode stateNode : stateNodes)
+            state.initByName("stateNode", stateNode);
+        state.initialise();
+        state.setEverythingDirty(false);
+        msc.calculateLogP();
+
+        int nProposals = 0;
+        for (int n = 0; n < chainLength; n++) {
+            state.store(n);
+            msc.store();
+
+            final Operator operator = operators.get(Randomizer.nextInt(operators.size()));
+            final double logHR = operator.proposal();
+            if (logHR > Double.NEGATIVE_INFINITY) {
+                final double logP = msc.calculateLogP();
+                assertEquals(calculateFullLogP(fullPopulationModel.get()),
+                        logP, allowedError);
+                nProposals++;
+            }
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                state.restore();
+                msc.restore();
+            }
+            state.setEverythingDirty(false);
+            assertEquals(calculateFullLogP(fullPopulationModel.get()),
+                    msc.getCurrentLogP(), allowedError);
+        }
+        assertTrue(nProposals > chainLength / 4);
+    }
+
+    @Test
+    public void testConstantPopulation() {
+        Randomizer.setSeed(1);
+        for (String newick : new String[] {testNetworks[0], testNetworks[1]}) {
+            for (int nThreads = 1; nThreads <= 2; nThreads++) {
+                initialize(newick);
+                PopulationSizeModel populationModel = new ConstantPopulation();
+                populationModel.initByName("popSizes", popSizes);
+                MultispeciesCoalescent msc = new MultispeciesCoalescent();
+                msc.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees,
+                        "populationModel", populationModel, "threads", nThreads);
+
+                List<Operator> operators = generateOperators();
+                ParameterScaler popSizesOperator = new ParameterScaler();
+                popSizesOperator.initByName("parameter", popSizes, "weight", 1.0);
+                operators.add(popSizesOperator);
+
+                List<StateNode> stateNodes = new ArrayList<>(geneTrees);
+                stateNodes.add(speciesNetwork);
+                stateNodes.add(popSizes);
+                checkChain(msc, stateNodes, operators, this::copyConstantPopulation);
+            }
+        }
+    }
+
+    @Test
+    public void testCoalescentTimes() {
+        for (String newick : new String[] {testNetworks[0], testNetworks[1]}) {
+            initialize(newick);
+            PopulationSizeModel timesModel = new ConstantPopulationTimes();
+            timesModel.initByName("popSizes", new RealParameter(popSizes.getValues()));
+            assertEquals(calculateFullLogP(copyConstantPopulation()), calculateFullLogP(timesModel), allowedError);
+        }
+    }
+
+    @Test
+    public void testConstantPopIntegrated() {
+        Randomizer.setSeed(2);
+        for (String newick : new String[] {testNetworks[0], testNetworks[1]}) {
+            for (int nThreads = 1; nThreads <= 2; nThreads++) {
+                initialize(newick);
+                RealParameter alpha = new RealParameter();
+                alpha.initByName("value", "5.0");
+                RealParameter beta = new RealParameter();
+                beta.initByName("value", "1.0");
+                PopulationSizeModel populationModel = new ConstantPopIntegrated();
+                populationModel.initByName("alpha", alpha, "beta", beta);
+                MultispeciesCoalescent msc = new MultispeciesCoalescent();
+                msc.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees,
+                        "populationModel", populationModel, "threads", nThreads);
+
+                List<Operator> operators = generateOperators();
+                for (RealParameter parameter : new RealParameter[] {alpha, beta}) {
+                    ParameterScaler parameterOperator = new ParameterScaler();
+                    parameterOperator.initByName("parameter", parameter, "weight", 1.0);
+                    operators.add(parameterOperator);
+                }
+
+                List<StateNode> stateNodes = new ArrayList<>(geneTrees);
+                stateNodes.add(speciesNetwork);
+                stateNodes.add(alpha);
+                stateNodes.add(beta);
+                checkChain(msc, stateNodes, operators, () -> {
+                    PopulationSizeModel fullPopulationModel = new ConstantPopIntegrated();
+                    fullPopulationModel.initByName("alpha", alpha, "beta", beta);
+                    return fullPopulationModel;
+                });
+            }
+        }
+    }
+}
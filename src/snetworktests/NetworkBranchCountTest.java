@@ -0,0 +1,104 @@
+package snetworktests;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+
+public class NetworkBranchCountTest extends NetworkTestHelper {
+    // the number of branches at the given time, counted from the branches of every node
+    private int countBranches(Network network, double time) {
+        int count = 0;
+        for (NetworkNode node : network.getAllNodes()) {
+            for (NetworkNode child : node.getChildren()) {
+                if (child.getHeight() <= time && node.getHeight() > time)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private void checkBranchCounts(Network network, Random random) {
+        final int nodeCount = network.getNodeCount();
+        final int[] nodeNrsByHeight = network.getNodeNumbersByHeight();
+        assertEquals(nodeCount, nodeNrsByHeight.length);
+        for (int k = 0; k < nodeCount; k++) {
+            final double height = network.getNode(nodeNrsByHeight[k]).getHeight();
+            if (k > 0)
+                assertTrue(network.getNode(nodeNrsByHeight[k - 1]).getHeight() <= height);
+            // the number of branches just above the node, halfway to the next node (or above the origin)
+            final double nextHeight = k < nodeCount - 1 ? network.getNode(nodeNrsByHeight[k + 1]).getHeight() : height + 1.0;
+            if (nextHeight > height) {
+                final double midHeight = (height + nextHeight) / 2;
+                assertEquals(countBranches(network, midHeight), network.getBranchCountAbove(k));
+                assertEquals(countBranches(network, midHeight), network.getBranchCount(midHeight));
+            }
+            // at the height of a node
+            assertEquals(countBranches(network, height), network.getBranchCount(height));
+        }
+        for (int i = 0; i < 20; i++) {
+            final double time = random.nextDouble() * network.getOrigin().getHeight() * 1.1;
+            assertEquals(countBranches(network, time), network.getBranchCount(time));
+        }
+    }
+
+    // move nodes of the network to random heights between their parents and children, sometimes tied with another node
+    private void moveNodes(Network network, Random random, int nMoves) {
+        final NetworkNode[] internalNodes = network.getInternalNodes();
+        for (int m = 0; m < nMoves; m++) {
+            final NetworkNode node = internalNodes[random.nextInt(internalNodes.length)];
+            double upper = Double.MAX_VALUE;
+            for (NetworkNode p : node.getParents())
+                upper = Math.min(upper, p.getHeight());
+            double lower = 0.0;
+            for (NetworkNode c : node.getChildren())
+                lower = Math.max(lower, c.getHeight());
+            // sometimes tie with a node which is not a parent or a child
+            final NetworkNode other = network.getNode(random.nextInt(network.getNodeCount() - 1));
+            if (random.nextInt(5) == 0 && other.getHeight() > lower && other.getHeight() < upper)
+                node.setHeight(other.getHeight());
+            else
+                node.setHeight(lower + random.nextDouble() * (upper - lower));
+        }
+    }
+
+    @Test
+    public void testBranchCounts() {
+        Random random = new Random(1);
+        for (String newick : testNetworks) {
+            Network network = parseNetwork(newick);
+            checkBranchCounts(network, random);
+
+            // move one node at a time, or several nodes before the counts are asked for
+            for (int step = 0; step < 200; step++) {
+                moveNodes(network, random, 1 + random.nextInt(3));
+                checkBranchCounts(network, random);
+            }
+        }
+    }
+
+    /* Heights written without NetworkNode.setHeight, by the parser and when a network is assigned,
+       are followed by a topology version change, after which the index is rebuilt. */
+    @Test
+    public void testAssignedHeights() {
+        Random random = new Random(2);
+        for (String newick : testNetworks) {
+            Network network = parseNetwork(newick);
+            checkBranchCounts(network, random);
+
+            for (int step = 0; step < 50; step++) {
+                // the heights of another network with the same topology, after the index has been built
+                Network other = parseNetwork(newick);
+                moveNodes(other, random, 5);
+                if (step % 2 == 0)
+                    network.assignFrom(other);
+                else
+                    network.assignFromFragile(other);
+                checkBranchCounts(network, random);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TreeParser;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.NetworkParser;
+
+abstract class NetworkTestHelper {
+    /* The species network of ConstantPopulationTest, a network with a reticulation node below another one,
+       and a network with four reticulation nodes above a single species. */
+    final String[] testNetworks = {
+            "(((A:0.2,#H1[&gamma=0.4]:0.1)S1:0.3,((B:0.1)#H1:0.2,C:0.3)S2:0.2)R:0.1)",
+            "((((A:0.02,(B:0.01)#H1[&gamma=0.3]:0.01)S3:0.01,(#H1:0.01)#H2[&gamma=0.6]:0.01)S2:0.02,(#H2:0.02,C:0.04)S1:0.01)R:0.01)",
+            "(((((A:0.1)#H1[&gamma=0.9]:0.1)#H2[&gamma=0.8]:0.3,((#H2:0.1,(#H1:0.1)#H3[&gamma=0.7]:0.1)S1:0.1)#H4[&gamma=0.6]:0.1)S2:0.1,(#H4:0.1,#H3:0.3)S3:0.1)R:0.1)"
+    };
+    // the gene trees of ConstantPopulationTest, which can be embedded in the first two species networks
+    final String[] newickGeneTrees = {
+            "(((a1:0.07,a2:0.07):0.48,(b1:0.25,b2:0.25):0.30):0.08,(b3:0.35,c1:0.35):0.28)",
+            "((((a1:0.10,a2:0.10):0.50,(b1:0.05,b2:0.05):0.55):0.05,b3:0.65):0.05,c1:0.70)"
+    };
+
+    TaxonSet generateSuperset() {
+        List<Taxon> superSetList = new ArrayList<>();
+
+        List<Taxon> taxonListA = new ArrayList<>();
+        taxonListA.add(new Taxon("a1"));
+        taxonListA.add(new Taxon("a2"));
+        superSetList.add(new TaxonSet("A", taxonListA));
+
+        List<Taxon> taxonListB = new ArrayList<>();
+        taxonListB.add(new Taxon("b1"));
+        taxonListB.add(new Taxon("b2"));
+        taxonListB.add(new Taxon("b3"));
+        superSetList.add(new TaxonSet("B", taxonListB));
+
+        List<Taxon> taxonListC = new ArrayList<>();
+        taxonListC.add(new Taxon("c1"));
+        superSetList.add(new TaxonSet("C", taxonListC));
+
+        return new TaxonSet(superSetList);
+    }
+
+    NetworkParser parseNetwork(String newick) {
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("newick", newick, "IsLabelledNewick", true, "adjustTipHeights", false);
+        NetworkParser networkParser = new NetworkParser();
+        networkParser.initByName("tree", treeParser);
+        return networkParser;
+    }
+
+    // the species network with the gene tree taxa of generateSuperset() mapped to its species
+    NetworkParser parseNetworkWithTaxa(String newick) {
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("newick", newick, "IsLabelledNewick", true, "adjustTipHeights", false);
+        NetworkParser networkParser = new NetworkParser();
+        networkParser.initByName("tree", treeParser, "taxonset", generateSuperset());
+        return networkParser;
+    }
+
+    // the ploidy is set to the default of the ploidy input, which is not read when building from a root node
+    EmbeddedTree parseGeneTree(String newick) {
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("newick", newick, "IsLabelledNewick", true);
+        EmbeddedTree geneTree = new EmbeddedTree(treeParser.getRoot());
+        geneTree.ploidy = 2.0;
+        return geneTree;
+    }
+
+    List<EmbeddedTree> parseGeneTrees(String... newicks) {
+        List<EmbeddedTree> geneTrees = new ArrayList<>();
+        for (String newick : newicks)
+            geneTrees.add(parseGeneTree(newick));
+        return geneTrees;
+    }
+}
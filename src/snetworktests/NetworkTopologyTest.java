@@ -0,0 +1,153 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.NetworkTopology;
+
+public class NetworkTopologyTest extends NetworkTestHelper {
+    // walk forward in time from the ancestor along the children
+    private boolean isReachable(NetworkNode node, NetworkNode ancestor) {
+        if (node == ancestor) return true;
+        for (NetworkNode child : ancestor.getChildren()) {
+            if (isReachable(node, child)) return true;
+        }
+        return false;
+    }
+
+    private void checkReachability(Network network) {
+        final int nodeCount = network.getNodeCount();
+        final int branchCount = network.getBranchCount();
+        final NetworkTopology topology = network.getTopology();
+        final long[] heirs = topology.getNodeHeirs();
+        final int maskWords = topology.getMaskWords();
+
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                final boolean reachable = isReachable(network.getNode(i), network.getNode(j));
+                assertEquals(reachable, network.isDescendant(i, j));
+                assertEquals(reachable, network.isAncestor(j, i));
+            }
+            // the heirs are the leaves below the node
+            for (int k = 0; k < network.getLeafNodeCount(); k++) {
+                final boolean isHeir = (heirs[i * maskWords + (k >>> 6)] & (1L << k)) != 0L;
+                assertEquals(isReachable(network.getNode(k), network.getNode(i)), isHeir);
+            }
+        }
+
+        for (int b = 0; b <= branchCount; b++) {
+            final NetworkNode childNode = network.getNode(network.getNodeNumber(b));
+            final NetworkNode parentNode = childNode.getParentByBranch(b);
+            assertEquals(childNode.getNr(), topology.getChildNodeOfBranch()[b]);
+            assertEquals(parentNode == null ? -1 : parentNode.getNr(), topology.getParentNodeOfBranch()[b]);
+            for (int i = 0; i < nodeCount; i++) {
+                final NetworkNode node = network.getNode(i);
+                assertEquals(isReachable(node, childNode), network.isDescendantOfBranch(i, b));
+                assertEquals(parentNode != null && isReachable(parentNode, node), network.isBranchDescendant(b, i));
+            }
+        }
+
+        // the branches of each pair of nodes
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                final List<Integer> branchNrs = new ArrayList<>(network.getNode(i).childBranchNumbers);
+                branchNrs.addAll(network.getNode(j).childBranchNumbers);
+                for (int k = 0; k < nodeCount; k++) {
+                    boolean reachable = false;
+                    for (NetworkNode child : network.getNode(i).getChildren())
+                        reachable |= isReachable(network.getNode(k), child);
+                    for (NetworkNode child : network.getNode(j).getChildren())
+                        reachable |= isReachable(network.getNode(k), child);
+                    assertEquals(reachable, network.isDescendantOfAnyBranch(k, branchNrs));
+                }
+            }
+        }
+    }
+
+    // a reticulation branch whose parent is a speciation node, null if there is none
+    private Integer findDeletableBranch(Network network) {
+        for (NetworkNode node : network.getReticulationNodes()) {
+            final int branchNr = network.getBranchNumber(node.getNr());
+            for (int b = branchNr; b < branchNr + 2; b++) {
+                if (node.getParentByBranch(b).isSpeciation())
+                    return b;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testReachability() {
+        for (String newick : testNetworks) {
+            Network network = parseNetwork(newick);
+            checkReachability(network);
+
+            // the topology is rebuilt after a reticulation branch is deleted
+            while (network.getReticulationNodeCount() > 0) {
+                final Integer reticulationBranchNr = findDeletableBranch(network);
+                if (reticulationBranchNr == null) break;
+                network.deleteReticulationBranch(reticulationBranchNr);
+                checkReachability(network);
+            }
+        }
+    }
+
+    /* Edits the network as an operator, so that the state stores it first, deleting a branch if one is given. */
+    public static class NetworkEditor extends Operator {
+        Network network;
+        Integer deletedBranchNr;
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            network.startEditing(this);
+            if (deletedBranchNr != null)
+                network.deleteReticulationBranch(deletedBranchNr);
+            return 0.0;
+        }
+    }
+
+    @Test
+    public void testStoreRestore() {
+        for (String newick : testNetworks) {
+            Network network = parseNetwork(newick);
+            State state = new State();
+            state.initByName("stateNode", network);
+            state.initialise();
+            NetworkEditor editor = new NetworkEditor();
+            editor.network = network;
+            final NetworkTopology topology = network.getTopology();
+            final int topologyVersion = network.getTopologyVersion();
+
+            // restoring the same topology keeps its version and structures
+            state.store(0);
+            editor.proposal();
+            state.restore();
+            assertEquals(topologyVersion, network.getTopologyVersion());
+            assertSame(topology, network.getTopology());
+
+            // restoring the topology before a reticulation branch is deleted finds its structures in the cache
+            editor.deletedBranchNr = findDeletableBranch(network);
+            if (editor.deletedBranchNr == null) continue;
+            state.store(1);
+            editor.proposal();
+            assertNotSame(topology, network.getTopology());
+            state.restore();
+            assertNotEquals(topologyVersion, network.getTopologyVersion());
+            assertSame(topology, network.getTopology());
+            checkReachability(network);
+        }
+    }
+}
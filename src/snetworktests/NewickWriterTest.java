@@ -0,0 +1,186 @@
+package snetworktests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+
+public class NewickWriterTest extends NetworkTestHelper {
+    /* The Newick string as built by NetworkNode.toString() before NewickWriter, except that the gamma prob and
+       the topology support are put into a copy of the meta data instead of the meta data of the node. */
+    private String buildNewick(NetworkNode node, double parentHeight, Integer branchNumber, DecimalFormat df,
+                               boolean inXML, Set<NetworkNode> touched) {
+        final StringBuilder subStr = new StringBuilder();
+        // only add children to a reticulation node once
+        if (node.getChildren().size() > 0 && touched.add(node)) {
+            subStr.append("(");
+            int i = 0;
+            for (Integer childBranchNr: node.childBranchNumbers) {
+                if (i > 0) subStr.append(",");
+                NetworkNode childNode = node.getChildByBranch(childBranchNr);
+                subStr.append(buildNewick(childNode, node.getHeight(), childBranchNr, df, inXML, touched));
+                i++;
+            }
+            subStr.append(")");
+        }
+
+        if (node.getLabel() != null)
+            subStr.append(node.getLabel());
+
+        final Map<String, Object> metaData = new TreeMap<>();
+        for (String name : node.getMetaDataNames())
+            metaData.put(name, node.getMetaData(name));
+        if (node.isOrigin() && node.topologySupport != null)
+            metaData.put("topologySupport", node.topologySupport);
+        final boolean withGamma = node.isReticulation() && node.gammaBranchNumber.equals(branchNumber);
+        if (withGamma)
+            metaData.put("gamma", node.getGammaProb());
+
+        StringBuilder metaStr = new StringBuilder();
+        for (Map.Entry<String, Object> entry : metaData.entrySet()) {
+            if (!entry.getKey().contains("gamma") || withGamma) {
+                Object value = entry.getValue();
+                metaStr.append(entry.getKey()).append("=");
+                if (value instanceof Object[] values) {
+                    metaStr.append("{");
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0) metaStr.append(",");
+                        metaStr.append(values[i].toString());
+                    }
+                    metaStr.append("}");
+                } else {
+                    metaStr.append(value.toString());
+                }
+                metaStr.append(",");
+            }
+        }
+        if (metaStr.length() > 0)
+            subStr.append(inXML ? "[&amp;" : "[&").append(metaStr, 0, metaStr.length() - 1).append(']');
+
+        if (parentHeight < Double.POSITIVE_INFINITY) {
+            final double branchLength = parentHeight - node.getHeight();
+            subStr.append(":");
+            if (df == null) subStr.append(branchLength);
+            else subStr.append(df.format(branchLength));
+        }
+
+        return subStr.toString();
+    }
+
+    private void checkNewick(Network network) {
+        final NetworkNode origin = network.getOrigin();
+        final DecimalFormat df = new DecimalFormat("0.####");
+        for (DecimalFormat format : new DecimalFormat[] {null, df}) {
+            for (boolean inXML : new boolean[] {false, true}) {
+                final String expected = buildNewick(origin, Double.POSITIVE_INFINITY, origin.gammaBranchNumber,
+                        format, inXML, new HashSet<>());
+                assertEquals(expected, origin.toString(format, inXML));
+            }
+        }
+        assertEquals(buildNewick(origin, Double.POSITIVE_INFINITY, origin.gammaBranchNumber, null, false,
+                new HashSet<>()), network.toString());
+        assertEquals(buildNewick(origin, Double.POSITIVE_INFINITY, origin.gammaBranchNumber, df, false,
+                new HashSet<>()), network.toString(df));
+    }
+
+    @Test
+    public void testNewick() {
+        for (String newick : testNetworks) {
+            Network network = parseNetwork(newick);
+            checkNewick(network);
+
+            // meta data of all kinds, and the values written in place of the stored gamma and topology support
+            final NetworkNode origin = network.getOrigin();
+            origin.topologySupport = 0.75;
+            origin.setMetaData("topologySupport", 0.5);
+            origin.setMetaData("height", 1.5);
+            checkNewick(network);
+            for (NetworkNode node : network.getReticulationNodes()) {
+                node.setMetaData("gamma", 0.1);
+                node.setMetaData("gamma_95%HPD", new Double[] {0.2, 0.8});
+                node.setMetaData("age", node.getHeight());
+                node.setMetaData("zeta", "z");
+            }
+            for (NetworkNode node : network.getSpeciationNodes())
+                node.setMetaData("height_95%HPD", new Double[] {0.0, node.getHeight()});
+            checkNewick(network);
+
+            // changes in place of an array value, and changes of the gamma probs and the heights
+            for (NetworkNode node : network.getSpeciationNodes())
+                ((Double[]) node.getMetaData("height_95%HPD"))[0] = 0.01;
+            for (NetworkNode node : network.getReticulationNodes())
+                node.setGammaProb(1.0 - node.getGammaProb());
+            network.getRoot().setHeight(network.getRoot().getHeight() + 0.01);
+            checkNewick(network);
+        }
+    }
+
+    // log the network, running "nested" (if not null) while the first child of the origin is being written
+    private String logNetwork(Network network, Runnable nested) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(new OutputStream() {
+            private Runnable pending = nested;
+
+            @Override
+            public void write(int b) {
+                bytes.write(b);
+                if (b == '(' && pending != null) {
+                    final Runnable run = pending;
+                    pending = null;
+                    run.run();
+                }
+            }
+        });
+        network.log(0, out);
+        out.flush();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testReentrantLog() throws Exception {
+        for (String newick : testNetworks) {
+            final Network network = parseNetwork(newick);
+            final String expected = "tree STATE_0 = " + network + ";";
+
+            // a log of the same network nested in another log
+            final String[] nestedLog = new String[1];
+            assertEquals(expected, logNetwork(network, () -> nestedLog[0] = logNetwork(network, null)));
+            assertEquals(expected, nestedLog[0]);
+
+            // logs of the same network from two threads at once
+            final List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                tasks.add(() -> {
+                    int nWrong = 0;
+                    for (int n = 0; n < 1000; n++) {
+                        if (!expected.equals(logNetwork(network, null)))
+                            nWrong++;
+                    }
+                    return nWrong;
+                });
+            }
+            final ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                for (Future<Integer> nWrong : executor.invokeAll(tasks))
+                    assertEquals(0, (int) nWrong.get());
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -75,10 +75,10 @@ abstract class PopulationTestHelper {
             final int[] embedding = this.embeddings.get(i);
             final int nRow = treeParser.getNodeCount();
             final int nCol = embedding.length / nRow;
-            embeddedTree.embedding.reset(nCol);
+            embeddedTree.getEditableEmbedding().reset(nCol);
             for (int r = 0; r < nRow; r++) {
                 for (int c = 0; c < nCol; c++)
-                    embeddedTree.embedding.setDirection(r, c, embedding[r * nCol + c]);
+                    embeddedTree.getEditableEmbedding().setDirection(r, c, embedding[r * nCol + c]);
             }
 
             geneTrees.add(embeddedTree);
@@ -0,0 +1,318 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Embedding;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.NetworkParser;
+import speciesnetwork.operators.RebuildEmbedding;
+
+public class RebuildEmbeddingTest extends NetworkTestHelper {
+    /* Both species nodes above A and B have them as descendants, but a gene node of A and B between the heights of
+       the two species nodes can only be embedded through the younger one. */
+    final String newickSpeciesNetwork3 = "(((((A:0.1)#H2[&gamma=0.3]:0.1,(B:0.1)#H1[&gamma=0.6]:0.1)S1:0.3,(#H2:0.25,#H1:0.25)S2:0.15)S3:0.1,C:0.6)R:0.1)";
+    final String newickGeneTree3 = "((((a1:0.25,b1:0.25):0.15,a2:0.4):0.1,(b2:0.05,b3:0.05):0.45):0.2,c1:0.7)";
+
+    final int nSamples = 20000;
+    final int chainLength = 100000;
+
+    NetworkParser speciesNetwork;
+    List<EmbeddedTree> geneTrees;
+
+    void initialize(String newickNetwork, String... geneTreeNewicks) {
+        speciesNetwork = parseNetworkWithTaxa(newickNetwork);
+        geneTrees = parseGeneTrees(geneTreeNewicks);
+    }
+
+    /* An embedding of the gene lineages below a gene node, given as the species branch taken by each gene lineage
+       at each species node it passes (-1 elsewhere), with its probability (the product of the inheritance
+       probabilities of the species branches taken). */
+    private static class SubEmbedding {
+        final int[] directions;
+        final double probability;
+
+        SubEmbedding(int[] directions, double probability) {
+            this.directions = directions;
+            this.probability = probability;
+        }
+    }
+
+    /* Enumerate all the embeddings of the gene lineage of the gene node entering the species node from above,
+       by following each gene lineage down through every species branch it may take. */
+    private List<SubEmbedding> enumerateEmbeddings(Node geneNode, NetworkNode speciesNode, int[] speciesLeafNumbers,
+                                                   int traversalNodeCount, int geneNodeCount) {
+        final List<SubEmbedding> subEmbeddings = new ArrayList<>();
+        if (geneNode.isLeaf() && speciesNode.isLeaf()) {
+            // a gene leaf has to end in its own species
+            if (speciesLeafNumbers[geneNode.getNr()] == speciesNode.getNr()) {
+                final int[] directions = new int[geneNodeCount * traversalNodeCount];
+                Arrays.fill(directions, -1);
+                subEmbeddings.add(new SubEmbedding(directions, 1.0));
+            }
+        } else if (geneNode.getHeight() <= speciesNode.getHeight()) {
+            // the gene node is below the species node, so the gene lineage takes one of its child branches
+            for (Integer childBranchNr : speciesNode.childBranchNumbers) {
+                final NetworkNode childNode = speciesNode.getChildByBranch(childBranchNr);
+                double gamma = 1.0;
+                if (childNode.isReticulation())
+                    gamma = childBranchNr.equals(childNode.gammaBranchNumber) ? childNode.getGammaProb() : 1.0 - childNode.getGammaProb();
+                for (SubEmbedding sub : enumerateEmbeddings(geneNode, childNode, speciesLeafNumbers, traversalNodeCount, geneNodeCount)) {
+                    sub.directions[geneNode.getNr() * traversalNodeCount + speciesNode.getTraversalNumber()] = childBranchNr;
+                    subEmbeddings.add(new SubEmbedding(sub.directions, sub.probability * gamma));
+                }
+            }
+        } else if (!geneNode.isLeaf()) {
+            // the gene node is in the branch above the species node, so each gene child lineage enters the species node
+            List<SubEmbedding> combined = null;
+            for (Node geneChild : geneNode.getChildren()) {
+                final List<SubEmbedding> childEmbeddings = enumerateEmbeddings(geneChild, speciesNode, speciesLeafNumbers, traversalNodeCount, geneNodeCount);
+                if (combined == null) {
+                    combined = childEmbeddings;
+                    continue;
+                }
+                final List<SubEmbedding> products = new ArrayList<>();
+                for (SubEmbedding sub1 : combined) {
+                    for (SubEmbedding sub2 : childEmbeddings) {
+                        final int[] directions = sub1.directions.clone();
+                        for (int k = 0; k < directions.length; k++) {
+                            if (sub2.directions[k] >= 0) directions[k] = sub2.directions[k];
+                        }
+                        products.add(new SubEmbedding(directions, sub1.probability * sub2.probability));
+                    }
+                }
+                combined = products;
+            }
+            subEmbeddings.addAll(combined);
+        }
+        return subEmbeddings;
+    }
+
+    /**
+     * @return the probability of each valid embedding of the gene tree in the species network,
+     * keyed by the embedding as written by Embedding.toString()
+     */
+    Map<String, Double> enumerateEmbeddings(EmbeddedTree geneTree, Network network) {
+        final int geneNodeCount = geneTree.getNodeCount();
+        final int traversalNodeCount = network.getInternalNodeCount();
+        final int[] speciesLeafNumbers = geneTree.getSpeciesLeafNumbers(network);
+        final Map<String, Double> embeddingProbs = new HashMap<>();
+        for (SubEmbedding sub : enumerateEmbeddings(geneTree.getRoot(), network.getRoot(), speciesLeafNumbers,
+                traversalNodeCount, geneNodeCount)) {
+            final Embedding embedding = new Embedding(geneNodeCount, traversalNodeCount);
+            for (int r = 0; r < geneNodeCount; r++) {
+                for (int c = 0; c < traversalNodeCount; c++)
+                    embedding.setDirection(r, c, sub.directions[r * traversalNodeCount + c]);
+            }
+            embeddingProbs.put(embedding.toString(), sub.probability);
+        }
+        return embeddingProbs;
+    }
+
+    static double sumOf(Map<String, Double> embeddingProbs) {
+        double probabilitySum = 0.0;
+        for (double probability : embeddingProbs.values())
+            probabilitySum += probability;
+        return probabilitySum;
+    }
+
+    // the tolerance of a frequency estimated from n independent samples
+    static double tolerance(double expected, int n) {
+        return 5.0 * Math.sqrt(expected * (1.0 - expected) / n) + 1e-3;
+    }
+
+    private void checkSampler(int nThreads, String newickNetwork, String... geneTreeNewicks) {
+        initialize(newickNetwork, geneTreeNewicks);
+        RebuildEmbedding rebuildOperator = new RebuildEmbedding();
+        rebuildOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees,
+                "threads", nThreads, "weight", 1.0);
+
+        final List<Map<String, Double>> embeddingProbs = new ArrayList<>();
+        final List<Map<String, Integer>> embeddingCounts = new ArrayList<>();
+        for (EmbeddedTree geneTree : geneTrees) {
+            embeddingProbs.add(enumerateEmbeddings(geneTree, speciesNetwork));
+            embeddingCounts.add(new HashMap<>());
+        }
+
+        for (int n = 0; n < nSamples; n++) {
+            assertTrue(rebuildOperator.rebuildEmbedding());
+            for (int j = 0; j < geneTrees.size(); j++) {
+                final Embedding embedding = geneTrees.get(j).embedding;
+                final String sampled = embedding.toString();
+                // every sampled embedding is valid, with the probabilities of the enumeration
+                final Double probability = embeddingProbs.get(j).get(sampled);
+                assertNotNull(probability);
+                assertEquals(probability, embedding.probability, 1e-12);
+                assertEquals(sumOf(embeddingProbs.get(j)), embedding.probabilitySum, 1e-12);
+                embeddingCounts.get(j).merge(sampled, 1, Integer::sum);
+            }
+        }
+
+        // each embedding is sampled in proportion to its probability
+        for (int j = 0; j < geneTrees.size(); j++) {
+            final double probabilitySum = sumOf(embeddingProbs.get(j));
+            for (Map.Entry<String, Double> entry : embeddingProbs.get(j).entrySet()) {
+                final double expected = entry.getValue() / probabilitySum;
+                final double frequency = (double) embeddingCounts.get(j).getOrDefault(entry.getKey(), 0) / nSamples;
+                assertEquals(expected, frequency, tolerance(expected, nSamples));
+            }
+        }
+    }
+
+    @Test
+    public void testSampler() {
+        Randomizer.setSeed(1);
+        for (int nThreads = 1; nThreads <= 2; nThreads++) {
+            checkSampler(nThreads, testNetworks[0], newickGeneTrees);
+            checkSampler(nThreads, testNetworks[1], newickGeneTrees);
+            // the old sampler failed if any species branch could not be taken
+            checkSampler(nThreads, newickSpeciesNetwork3, newickGeneTree3);
+        }
+    }
+
+    /* Moves one of the given species nodes between its two given heights, so the proposal is symmetric.
+       The heights have to be within the bounds of the node in either height of the other nodes. */
+    public static class HeightToggle extends Operator {
+        public final Input<Network> speciesNetworkInput =
+                new Input<>("speciesNetwork", "The species network.", Validate.REQUIRED);
+
+        int[] nodeNrs;
+        double[][] nodeHeights;
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            final Network speciesNetwork = speciesNetworkInput.get();
+            final int k = Randomizer.nextInt(nodeNrs.length);
+            final NetworkNode node = speciesNetwork.getNode(nodeNrs[k]);
+            speciesNetwork.startEditing(this);
+            node.setHeight(node.getHeight() == nodeHeights[k][0] ? nodeHeights[k][1] : nodeHeights[k][0]);
+            return 0.0;
+        }
+    }
+
+    private String getHeightsKey(HeightToggle toggle) {
+        StringBuilder key = new StringBuilder();
+        for (int nodeNr : toggle.nodeNrs)
+            key.append(speciesNetwork.getNode(nodeNr).getHeight()).append(' ');
+        return key.toString();
+    }
+
+    /* Run a chain whose target is the product of the probabilities of the gene tree embeddings, mixing a full rebuild
+       with a rebuild in the given mode wrapping a move of the species node heights. If the hastings ratios are right,
+       the heights have the probability of the product of the probability sums, and given the heights,
+       each embedding the probability in proportion to its own. */
+    private void checkChain(String rebuildMode) {
+        initialize(testNetworks[0], newickGeneTrees);
+        State state = new State();
+        state.initByName("stateNode", speciesNetwork, "stateNode", geneTrees);
+        state.initialise();
+
+        // the parent of A crosses the gene nodes of the first gene tree, the reticulation node those of the second
+        HeightToggle toggle = new HeightToggle();
+        toggle.initByName("speciesNetwork", speciesNetwork, "weight", 1.0);
+        final NetworkNode speciesNodeA = speciesNetwork.getNode(speciesNetwork.getNodeNumber("A"));
+        toggle.nodeNrs = new int[] {speciesNodeA.getParents().iterator().next().getNr(), speciesNetwork.getReticulationOffset()};
+        toggle.nodeHeights = new double[][] {{0.2, 0.4}, {0.1, 0.04}};
+
+        RebuildEmbedding rebuildFull = new RebuildEmbedding();
+        rebuildFull.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "weight", 1.0);
+        RebuildEmbedding rebuildToggle = new RebuildEmbedding();
+        if (rebuildMode == null)
+            rebuildToggle.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "operator", toggle,
+                    "weight", 1.0);
+        else
+            rebuildToggle.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "operator", toggle,
+                    rebuildMode, true, "weight", 1.0);
+
+        // the probabilities of the embeddings at each combination of the heights
+        final Map<String, List<Map<String, Double>>> embeddingProbs = new HashMap<>();
+        final Map<String, Double> heightsProbs = new HashMap<>();
+        double heightsProbSum = 0.0;
+        for (int c = 0; c < 4; c++) {
+            for (int k = 0; k < 2; k++)
+                speciesNetwork.getNode(toggle.nodeNrs[k]).setHeight(toggle.nodeHeights[k][(c >> k) & 1]);
+            final List<Map<String, Double>> geneEmbeddingProbs = new ArrayList<>();
+            double heightsProb = 1.0;
+            for (EmbeddedTree geneTree : geneTrees) {
+                geneEmbeddingProbs.add(enumerateEmbeddings(geneTree, speciesNetwork));
+                heightsProb *= sumOf(geneEmbeddingProbs.get(geneEmbeddingProbs.size() - 1));
+            }
+            final String heightsKey = getHeightsKey(toggle);
+            embeddingProbs.put(heightsKey, geneEmbeddingProbs);
+            heightsProbs.put(heightsKey, heightsProb);
+            heightsProbSum += heightsProb;
+        }
+        speciesNetwork.setEverythingDirty(true);
+        assertTrue(rebuildFull.rebuildEmbedding());
+        state.setEverythingDirty(false);
+
+        final Map<String, Integer> heightsCounts = new HashMap<>();
+        final Map<String, Integer> embeddingCounts = new HashMap<>();
+        for (int n = 0; n < chainLength; n++) {
+            state.store(n);
+            double oldLogP = 0.0;
+            for (EmbeddedTree geneTree : geneTrees)
+                oldLogP += Math.log(geneTree.embedding.probability);
+
+            final RebuildEmbedding operator = Randomizer.nextInt(3) == 0 ? rebuildFull : rebuildToggle;
+            final double logHR = operator.proposal();
+            double newLogP = 0.0;
+            for (EmbeddedTree geneTree : geneTrees)
+                newLogP += Math.log(geneTree.embedding.probability);
+            if (logHR == Double.NEGATIVE_INFINITY || Math.log(Randomizer.nextDouble()) >= newLogP - oldLogP + logHR)
+                state.restore();
+            state.setEverythingDirty(false);
+
+            final String heightsKey = getHeightsKey(toggle);
+            heightsCounts.merge(heightsKey, 1, Integer::sum);
+            for (int j = 0; j < geneTrees.size(); j++)
+                embeddingCounts.merge(heightsKey + j + " " + geneTrees.get(j).embedding, 1, Integer::sum);
+        }
+
+        // the samples are correlated, so the tolerance is that of fewer independent samples
+        final int nEffective = chainLength / 20;
+        for (Map.Entry<String, Double> entry : heightsProbs.entrySet()) {
+            final double expected = entry.getValue() / heightsProbSum;
+            final double frequency = (double) heightsCounts.getOrDefault(entry.getKey(), 0) / chainLength;
+            assertEquals(expected, frequency, tolerance(expected, nEffective));
+
+            for (int j = 0; j < geneTrees.size(); j++) {
+                final Map<String, Double> geneEmbeddingProbs = embeddingProbs.get(entry.getKey()).get(j);
+                final double probabilitySum = sumOf(geneEmbeddingProbs);
+                for (Map.Entry<String, Double> embeddingEntry : geneEmbeddingProbs.entrySet()) {
+                    final double expectedJoint = expected * embeddingEntry.getValue() / probabilitySum;
+                    final String embeddingKey = entry.getKey() + j + " " + embeddingEntry.getKey();
+                    final double jointFrequency = (double) embeddingCounts.getOrDefault(embeddingKey, 0) / chainLength;
+                    assertEquals(expectedJoint, jointFrequency, tolerance(expectedJoint, nEffective));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHastingsRatio() {
+        Randomizer.setSeed(2);
+        checkChain(null);
+        checkChain("incremental");
+        checkChain("keepValid");
+    }
+}
@@ -36,8 +36,6 @@ public class BirthDeathHybridization extends Distribution {
     public final Input<RealParameter> betaShapeInput =
             new Input<>("betaShape", "Shape of the symmetric beta prior on gamma probs (default is 1).");
 
-    private static Comparator<NetworkNode> hc = new NodeHeightComparator();
-
     private double lambda, mu, nu;
     private Beta betaPrior;
     final static double EPSILON = 1e-8;
@@ -82,23 +80,22 @@ public class BirthDeathHybridization extends Distribution {
     public double calculateLogP() {
         final Network network = networkInput.get();
 
-        // sort the network nodes according to their heights in ascending order
-        List<NetworkNode> nodes = Arrays.asList(network.getAllNodes());
-        nodes.sort(hc);
+        // the network nodes in ascending order of their heights
+        final int[] nodeNrsByHeight = network.getNodeNumbersByHeight();
 
         // get current values of lambda, mu and nu
         updateParameters();
 
         logP = 0.0;
         // calculate probability of the network
-        for (int i = 1; i < nodes.size(); i++) {
-            final NetworkNode node = nodes.get(i);
+        for (int i = 1; i < nodeNrsByHeight.length; i++) {
+            final NetworkNode node = network.getNode(nodeNrsByHeight[i]);
             final double nodeHeight = node.getHeight();
-            final double nextHeight = nodes.get(i-1).getHeight();
+            final double nextHeight = network.getNode(nodeNrsByHeight[i-1]).getHeight();
 
             if (nodeHeight > EPSILON) {  // rule out extant species
-                // number of branches in time interval (nodeHeight, nextHeight)
-                final int nBranch = network.getBranchCount((nodeHeight + nextHeight) /2.0);
+                // number of branches in time interval (nodeHeight, nextHeight), i.e. just above the previous node
+                final int nBranch = network.getBranchCountAbove(i-1);
                 final double totalRate = nBranch * (lambda + mu) + nu * nBranch * (nBranch -1) /2;
                 logP += totalRate * (nextHeight - nodeHeight);
 
@@ -32,8 +32,6 @@ public class BirthHybridizationModel extends Distribution {
     public final Input<RealParameter> betaShapeInput =
             new Input<>("betaShape", "Shape of the symmetric beta prior on gamma probs (default is 1).");
 
-    private static Comparator<NetworkNode> hc = new NodeHeightComparator();
-
     private double lambda, nu;
     private Beta betaPrior;
     final static double EPSILON = 1e-8;
@@ -85,25 +83,22 @@ public class BirthHybridizationModel extends Distribution {
     public double calculateLogP() {
         final Network network = networkInput.get();
 
-        // sort the internal nodes according to their heights in ascending order
-        List<NetworkNode> nodes = Arrays.asList(network.getInternalNodesWithOrigin());
-        nodes.sort(hc);
+        // the network nodes in ascending order of their heights
+        final int[] nodeNrsByHeight = network.getNodeNumbersByHeight();
+        final int leafNodeCount = network.getLeafNodeCount();
 
         // get current values of lambda and nu
         updateParameters();
 
         logP = 0.0;
         // calculate probability of the network
-        for (int i = 0; i < nodes.size(); i++) {
-            final NetworkNode node = nodes.get(i);
+        double nextHeight = 0.0;  // the tip, below the youngest internal node
+        for (int i = 0; i < nodeNrsByHeight.length; i++) {
+            if (nodeNrsByHeight[i] < leafNodeCount) continue;  // only internal nodes and the origin
+            final NetworkNode node = network.getNode(nodeNrsByHeight[i]);
             final double nodeHeight = node.getHeight();
-            final double nextHeight;
-            if (i == 0)  // the youngest internal node
-                nextHeight = 0.0;  // the tip
-            else
-                nextHeight = nodes.get(i-1).getHeight();
-            // number of branches in time interval (nodeHeight, nextHeight)
-            final int nBranch = network.getBranchCount((nodeHeight + nextHeight) /2.0);
+            // number of branches in time interval (nodeHeight, nextHeight), i.e. just above the previous node
+            final int nBranch = network.getBranchCountAbove(i-1);
             final double totalRate = nBranch * lambda + nu * nBranch * (nBranch -1) /2;
             logP += totalRate * (nextHeight - nodeHeight);
 
@@ -115,6 +110,7 @@ public class BirthHybridizationModel extends Distribution {
             else if (node.isSpeciation()) {
                 logP += Math.log(lambda);
             }
+            nextHeight = nodeHeight;
         }
 
         return logP;
@@ -26,6 +26,16 @@ public class ConstantPopIntegrated extends PopulationSizeModel {
     @Override
     public double branchLogP(int speciesBranchNumber, double[] perGenePloidy,
                              List<Double[]> branchCoalescentTimes, int[] branchLineageCounts, int[] branchEventCounts) {
+        return sufficientBranchLogP(speciesBranchNumber, perGenePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
+    }
+
+    @Override
+    public boolean usesSufficientStatistics() {
+        return true;
+    }
+
+    @Override
+    public double branchLogP(int speciesBranchNumber, int branchQ, double branchGamma, double branchLogR) {
         final RealParameter invgammaShape = invgammaShapeInput.get();
         final RealParameter invgammaScale = invgammaScaleInput.get();
         final RealParameter invgammaMean = invgammaMeanInput.get();
@@ -35,31 +45,6 @@ public class ConstantPopIntegrated extends PopulationSizeModel {
             beta = invgammaScale.getValue();
         else
             beta = invgammaMean.getValue() * (alpha - 1.0);
-        final int nGenes = perGenePloidy.length;
-
-        int branchQ = 0;
-        double branchLogR = 0.0;
-        double branchGamma = 0.0;
-
-        for (int j = 0; j < nGenes; j++) {
-            final int geneN = branchLineageCounts[j];
-            final Double[] geneCoalescentTimes = branchCoalescentTimes.get(j);
-            final int geneK = branchEventCounts[j];
-            final double genePloidy = perGenePloidy[j]; 
-            branchLogR -= geneK * Math.log(genePloidy);
-            branchQ += geneK;
-
-            double partialGamma = 0.0;
-            for (int i = 0; i < geneK; i++) {
-                partialGamma += (geneCoalescentTimes[i + 1] - geneCoalescentTimes[i])
-                                * (geneN - i) * (geneN - i - 1.0) / 2.0;
-            }
-            if (geneN - geneK > 1) {
-                partialGamma += (geneCoalescentTimes[geneK + 1] - geneCoalescentTimes[geneK])
-                                * (geneN - geneK) * (geneN - geneK - 1.0) / 2.0;
-            }
-            branchGamma += partialGamma / genePloidy;
-        }
 
         double logGammaRatio = 0.0;
         for (int i = 0; i < branchQ; i++) {
@@ -69,6 +54,16 @@ public class ConstantPopIntegrated extends PopulationSizeModel {
         return branchLogR + alpha * Math.log(beta) - (alpha + branchQ) * Math.log(beta + branchGamma) + logGammaRatio;
     }
 
+    @Override
+    protected boolean branchParametersChanged(int speciesBranchNumber) {
+        // every branch shares the same inverse gamma prior
+        final RealParameter invgammaScale = invgammaScaleInput.get();
+        final RealParameter invgammaMean = invgammaMeanInput.get();
+        return invgammaShapeInput.get().somethingIsDirty() ||
+                (invgammaScale != null && invgammaScale.somethingIsDirty()) ||
+                (invgammaMean != null && invgammaMean.somethingIsDirty());
+    }
+
     @Override
     public void initPopSizes(int nPopulation) {
         // do nothing
@@ -22,38 +22,28 @@ public class ConstantPopulation extends PopulationSizeModel {
     @Override
     public double branchLogP(int speciesBranchNumber, double[] perGenePloidy,
                              List<Double[]> branchCoalescentTimes, int[] branchLineageCounts, int[] branchEventCounts) {
-        final RealParameter popSizes = popSizesInput.get();
-        final double popSize = popSizes.getValue(speciesBranchNumber);
-
-        final int nGenes = perGenePloidy.length;
-
-        int branchQ = 0;
-        double branchLogR = 0.0;
-        double branchGamma = 0.0;
+        return sufficientBranchLogP(speciesBranchNumber, perGenePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
+    }
 
-        for (int j = 0; j < nGenes; j++) {
-            final int geneN = branchLineageCounts[j];
-            final Double[] geneCoalescentTimes = branchCoalescentTimes.get(j);
-            final int geneK = branchEventCounts[j];
-            final double genePloidy = perGenePloidy[j];
-            branchLogR -= geneK * Math.log(genePloidy);
-            branchQ += geneK;
+    @Override
+    public boolean usesSufficientStatistics() {
+        return true;
+    }
 
-            double partialGamma = 0.0;
-            for (int i = 0; i < geneK; i++) {
-                partialGamma += (geneCoalescentTimes[i + 1] - geneCoalescentTimes[i])
-                                * (geneN - i) * (geneN - i - 1.0) / 2.0;
-            }
-            if (geneN - geneK > 1) {
-                partialGamma += (geneCoalescentTimes[geneK + 1] - geneCoalescentTimes[geneK])
-                                * (geneN - geneK) * (geneN - geneK - 1.0) / 2.0;
-            }
-            branchGamma += partialGamma / genePloidy;
-        }
+    @Override
+    public double branchLogP(int speciesBranchNumber, int branchQ, double branchGamma, double branchLogR) {
+        final RealParameter popSizes = popSizesInput.get();
+        final double popSize = popSizes.getValue(speciesBranchNumber);
 
         return branchLogR - (branchQ * Math.log(popSize)) - (branchGamma / popSize);
     }
 
+    @Override
+    protected boolean branchParametersChanged(int speciesBranchNumber) {
+        final RealParameter popSizes = popSizesInput.get();
+        return popSizes.somethingIsDirty() && popSizes.isDirty(speciesBranchNumber);
+    }
+
     @Override
     public void initPopSizes(int nPopulation) {
         final RealParameter popSizes = popSizesInput.get();
@@ -1,6 +1,13 @@
 package speciesnetwork;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import beast.base.core.Input;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
@@ -10,8 +17,33 @@ public class EmbeddedTree extends Tree {
             new Input<>("ploidy", "Ploidy (copy number) for this gene (default is 2).", 2.0);
 
     public double ploidy;
+    /* The embedding is copy-on-write: store() only lets storedEmbedding refer to the current embedding,
+       and it is copied (into the spare buffer) when it is first changed through getEditableEmbedding().
+       Operators writing directions must therefore use getEditableEmbedding(). */
     public Embedding embedding;
     private Embedding storedEmbedding;
+    private Embedding spareEmbedding;
+
+    // species network leaf node number of each gene tree leaf node, and the taxa it was built from
+    private int[] speciesLeafNumbers;
+    private Network speciesLeafNetwork;
+    private String[] geneLeafNames;
+    private String[] speciesLeafNames;
+
+    /* Arrays for traversing the gene tree without recursion, indexed by node number (except preOrder).
+       preOrder lists the node numbers from the root, with the children in the order of getChildren() and each
+       subtree contiguous, so that the reverse order is a post-order. They are built from the node array and
+       root below, and the order is only rebuilt when the topology may have changed since. */
+    private int[] preOrder;
+    private int[] parentNumbers;
+    private int[] childNumbers;  // two per node, -1 if missing
+    private double[] nodeHeights;
+    private int[] firstLeafNumbers;  // the first leaf below each node in pre-order, a leaf itself
+    private int[] traversalStack;
+    private Node[] traversalNodes;
+    private Node traversalRoot;
+    private boolean traversalIsEdited = true;
+    private boolean traversalOrderIsStale = true;
 
     public EmbeddedTree() {
     }
@@ -42,8 +74,8 @@ public class EmbeddedTree extends Tree {
         etree.nodeCount = nodeCount;
         etree.internalNodeCount = internalNodeCount;
         etree.leafNodeCount = leafNodeCount;
-        etree.embedding = new Embedding(embedding);
-        etree.storedEmbedding = new Embedding(storedEmbedding);
+        // keep the stored embedding shared with the current one if it is
+        copyEmbeddings(this, etree);
         return etree;
     }
 
@@ -54,8 +86,7 @@ public class EmbeddedTree extends Tree {
     public void assignTo(final StateNode other) {
         super.assignTo(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        etree.embedding = new Embedding(embedding);
-        etree.storedEmbedding = new Embedding(storedEmbedding);
+        copyEmbeddings(this, etree);
     }
 
     /**
@@ -65,8 +96,8 @@ public class EmbeddedTree extends Tree {
     public void assignFrom(final StateNode other) {
         super.assignFrom(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        embedding = new Embedding(etree.embedding);
-        storedEmbedding = new Embedding(etree.storedEmbedding);
+        copyEmbeddings(etree, this);
+        traversalOrderIsStale = true;
     }
 
     /**
@@ -76,12 +107,149 @@ public class EmbeddedTree extends Tree {
     public void assignFromFragile(final StateNode other) {
         super.assignFromFragile(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        embedding = new Embedding(etree.embedding);
-        storedEmbedding = new Embedding(etree.storedEmbedding);
+        copyEmbeddings(etree, this);
+        traversalOrderIsStale = true;
+    }
+
+    /* copy the current and stored embeddings, reusing the embedding objects of dst where possible */
+    private static void copyEmbeddings(final EmbeddedTree src, final EmbeddedTree dst) {
+        final Embedding[] reusable = {dst.embedding, dst.storedEmbedding, dst.spareEmbedding};
+        if (reusable[1] == reusable[0]) reusable[1] = null;
+        dst.embedding = copyEmbedding(src.embedding, reusable);
+        if (src.storedEmbedding == src.embedding)
+            dst.storedEmbedding = dst.embedding;
+        else
+            dst.storedEmbedding = copyEmbedding(src.storedEmbedding, reusable);
+        dst.spareEmbedding = null;
+        for (Embedding e : reusable) {
+            if (e != null) dst.spareEmbedding = e;
+        }
+    }
+
+    private static Embedding copyEmbedding(final Embedding src, final Embedding[] reusable) {
+        for (int i = 0; i < reusable.length; i++) {
+            final Embedding e = reusable[i];
+            if (e != null && e != src && e.geneNodeCount == src.geneNodeCount) {
+                reusable[i] = null;
+                e.copyFrom(src);
+                return e;
+            }
+        }
+        return new Embedding(src);
+    }
+
+    @Override
+    public void startEditing(final Operator operator) {
+        // edits in an earlier step which have not been brought up to date can no longer be found from the dirty flags
+        if (traversalIsEdited && !somethingIsDirty())
+            traversalOrderIsStale = true;
+        super.startEditing(operator);
+        traversalIsEdited = true;
+    }
+
+    /**
+     * Bring the traversal arrays up to date with the gene tree. The heights are refreshed on every call, while the
+     * order is only rebuilt if some node has a new parent (or the nodes have been restored or replaced).
+     * It is linear in the number of nodes, so it should be called before using the arrays.
+     */
+    public void updateTraversalArrays() {
+        final Node[] nodes = getNodesAsArray();
+        if (traversalOrderIsStale || preOrder == null || preOrder.length != nodeCount ||
+                nodes != traversalNodes || root != traversalRoot) {
+            buildTraversalArrays(nodes);
+        } else if (traversalIsEdited) {
+            // the dirty flags of the nodes are only reliable while the tree is being edited
+            boolean topologyChanged = !somethingIsDirty();
+            for (int i = 0; i < nodeCount && !topologyChanged; i++)
+                topologyChanged = nodes[i].isDirty() == Tree.IS_FILTHY;
+            if (topologyChanged)
+                buildTraversalArrays(nodes);
+        }
+        // the heights of a tree without a state can change without it being told to start editing
+        for (int i = 0; i < nodeCount; i++)
+            nodeHeights[i] = nodes[i].getHeight();
+        traversalIsEdited = false;
+    }
+
+    private void buildTraversalArrays(final Node[] nodes) {
+        if (preOrder == null || preOrder.length != nodeCount) {
+            preOrder = new int[nodeCount];
+            parentNumbers = new int[nodeCount];
+            childNumbers = new int[2 * nodeCount];
+            nodeHeights = new double[nodeCount];
+            firstLeafNumbers = new int[nodeCount];
+            traversalStack = new int[nodeCount];
+        }
+
+        int stackSize = 0, k = 0;
+        traversalStack[stackSize++] = root.getNr();
+        parentNumbers[root.getNr()] = -1;
+        while (stackSize > 0) {
+            final int nodeNr = traversalStack[--stackSize];
+            final Node node = nodes[nodeNr];
+            preOrder[k++] = nodeNr;
+            nodeHeights[nodeNr] = node.getHeight();
+            final List<Node> children = node.getChildren();
+            if (children.size() > 2)
+                throw new RuntimeException("Gene tree node " + nodeNr + " has more than two children!");
+            childNumbers[2 * nodeNr] = childNumbers[2 * nodeNr + 1] = -1;
+            for (int i = 0; i < children.size(); i++) {
+                final int childNr = children.get(i).getNr();
+                childNumbers[2 * nodeNr + i] = childNr;
+                parentNumbers[childNr] = nodeNr;
+            }
+            // push the children in reverse, so that the first child is visited first
+            for (int i = children.size() - 1; i >= 0; i--)
+                traversalStack[stackSize++] = children.get(i).getNr();
+        }
+        for (k = nodeCount - 1; k >= 0; k--) {
+            final int nodeNr = preOrder[k];
+            final int firstChildNr = childNumbers[2 * nodeNr];
+            firstLeafNumbers[nodeNr] = firstChildNr < 0 ? nodeNr : firstLeafNumbers[firstChildNr];
+        }
+        traversalNodes = nodes;
+        traversalRoot = root;
+        traversalOrderIsStale = false;
+    }
+
+    /**
+     * @return the node numbers in pre-order (the reverse is a post-order), see updateTraversalArrays()
+     */
+    public int[] getPreOrder() {
+        return preOrder;
+    }
+
+    /**
+     * @return the parent node number of each node, -1 for the root
+     */
+    public int[] getParentNumbers() {
+        return parentNumbers;
+    }
+
+    /**
+     * @return the two child node numbers of each node at 2 * node number and 2 * node number + 1, -1 for a leaf
+     */
+    public int[] getChildNumbers() {
+        return childNumbers;
+    }
+
+    /**
+     * @return a leaf below each node (the first one in pre-order), the node itself for a leaf
+     */
+    public int[] getFirstLeafNumbers() {
+        return firstLeafNumbers;
+    }
+
+    /**
+     * @return the height of each node
+     */
+    public double[] getNodeHeights() {
+        return nodeHeights;
     }
 
     public void assignFromTree(final StateNode other) {
         super.assignFrom(other);
+        traversalOrderIsStale = true;
     }
 
     public void assignToTree(final StateNode other) {
@@ -91,15 +259,97 @@ public class EmbeddedTree extends Tree {
     @Override
     public void store() {
         super.store();
-        storedEmbedding.copyFrom(embedding);
+        if (storedEmbedding != embedding) {
+            spareEmbedding = storedEmbedding;
+            storedEmbedding = embedding;
+        }
     }
 
     @Override
     public void restore() {
         super.restore();
-        final Embedding tmpEmbedding = embedding;
-        embedding = storedEmbedding;
-        storedEmbedding = tmpEmbedding;
+        traversalOrderIsStale = true;
+        if (embedding != storedEmbedding) {
+            spareEmbedding = embedding;
+            embedding = storedEmbedding;
+        }
+    }
+
+    /**
+     * @return the current embedding, copied first if it is still shared with the stored embedding
+     */
+    public Embedding getEditableEmbedding() {
+        if (embedding == storedEmbedding) {
+            final Embedding editable;
+            if (spareEmbedding != null && spareEmbedding.geneNodeCount == embedding.geneNodeCount) {
+                editable = spareEmbedding;
+                editable.copyFrom(embedding);
+            } else {
+                editable = new Embedding(embedding);
+            }
+            spareEmbedding = null;
+            embedding = editable;
+        }
+        return embedding;
+    }
+
+    /**
+     * The mapping from gene tree tips to species network tips does not change during a run,
+     * so it is only rebuilt from the taxon sets when the taxa of the gene tree or the species network change.
+     * @return the species network leaf node number of each gene tree leaf node, indexed by gene leaf node number
+     */
+    public int[] getSpeciesLeafNumbers(final Network speciesNetwork) {
+        if (!speciesLeafNumbersAreValid(speciesNetwork)) {
+            // map of species network tip names to species network tip node numbers
+            final NetworkNode[] speciesLeaves = speciesNetwork.getLeafNodes();
+            final Map<String, Integer> speciesTipMap = new HashMap<>();
+            speciesLeafNames = new String[speciesLeaves.length];
+            for (NetworkNode speciesNode: speciesLeaves) {
+                final String speciesName = speciesNode.getLabel();
+                speciesTipMap.put(speciesName, speciesNode.getNr());
+                speciesLeafNames[speciesNode.getNr()] = speciesName;
+            }
+
+            // map of gene tree tip names to species network tip node numbers
+            final Map<String, Integer> geneTipMap = new HashMap<>();
+            final TaxonSet taxonSuperSet = speciesNetwork.taxonSetInput.get();
+            for (Taxon species: taxonSuperSet.taxonsetInput.get()) {
+                final Integer speciesNr = speciesTipMap.get(species.getID());
+                final TaxonSet speciesTaxonSet = (TaxonSet) species;
+                for (Taxon geneTip: speciesTaxonSet.taxonsetInput.get())
+                    geneTipMap.put(geneTip.getID(), speciesNr);
+            }
+
+            speciesLeafNumbers = new int[leafNodeCount];
+            geneLeafNames = new String[leafNodeCount];
+            for (int i = 0; i < leafNodeCount; i++) {
+                final String gLeafName = m_nodes[i].getID();
+                final Integer speciesNr = geneTipMap.get(gLeafName);
+                if (speciesNr == null)
+                    throw new RuntimeException("Gene tree tip " + gLeafName + " is not assigned to any species!");
+                speciesLeafNumbers[i] = speciesNr;
+                geneLeafNames[i] = gLeafName;
+            }
+            speciesLeafNetwork = speciesNetwork;
+        }
+
+        return speciesLeafNumbers;
+    }
+
+    // the taxa are assigned once, so comparing the references of the tip names is enough
+    private boolean speciesLeafNumbersAreValid(final Network speciesNetwork) {
+        if (speciesLeafNumbers == null || speciesLeafNetwork != speciesNetwork ||
+                geneLeafNames.length != leafNodeCount || speciesLeafNames.length != speciesNetwork.getLeafNodeCount())
+            return false;
+        for (int i = 0; i < leafNodeCount; i++) {
+            if (m_nodes[i].getID() != geneLeafNames[i])
+                return false;
+        }
+        for (NetworkNode speciesNode: speciesNetwork.getLeafNodes()) {
+            if (speciesNode.getLabel() != speciesLeafNames[speciesNode.getNr()])
+                return false;
+        }
+        return true;
     }
 
     @Override
@@ -119,7 +369,13 @@ public class EmbeddedTree extends Tree {
         for (int i = 0; i < nodeCount; i++) {
             final String embedStr = (String) m_nodes[i].getMetaData("embedding");
             String[] parts = embedStr.split(" ");
-            if (i == 0) embedding = new Embedding(nodeCount, parts.length);
+            if (i == 0) {
+                final Embedding editable = getEditableEmbedding();
+                if (editable.geneNodeCount == nodeCount)
+                    editable.reset(parts.length);
+                else
+                    editable.copyFrom(new Embedding(nodeCount, parts.length));
+            }
             for(int j = 0; j < parts.length; j++) {
                 final int value = Integer.parseInt(parts[j]);
                 embedding.setDirection(i, j, value);
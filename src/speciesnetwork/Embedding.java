@@ -3,63 +3,149 @@ package speciesnetwork;
 public class Embedding {
     public int geneNodeCount;
     public int traversalNodeCount;      // number of traversable species network nodes
-    protected int[] embedding;          // matrix with nrow=geneNodeCount and ncol=traversalNodeCount
     public double probability = 1.0;    // probability of this embedding
     public double probabilitySum = 1.0; // sum of probabilities of all alternative embeddings
 
+    /* The embedding is a matrix with nrow=geneNodeCount and ncol=traversalNodeCount, which is mostly -1,
+       as each gene lineage only passes through a few species nodes. Only the directions which are set
+       are kept, packed as (traversal node << 16 | direction), row r in the rowCapacities[r] cells from rowOffsets[r].
+       A full row is moved to the end of the used cells with twice its capacity, so the other rows keep theirs. */
+    private static final int INITIAL_ROW_CAPACITY = 4;
+    private int[] cells;
+    private int usedCellCount;
+    private int[] rowOffsets;
+    private int[] rowCapacities;
+    private int[] rowLengths;
+
     public Embedding(int gnc) {
-        geneNodeCount = gnc;
-        traversalNodeCount = 1;
-        embedding = new int[geneNodeCount * traversalNodeCount];
-        java.util.Arrays.fill(embedding, -1);
+        this(gnc, 1);
     }
 
     public Embedding(int gnc, int tnc) {
         geneNodeCount = gnc;
         traversalNodeCount = tnc;
-        embedding = new int[geneNodeCount * traversalNodeCount];
-        java.util.Arrays.fill(embedding, -1);
+        cells = new int[geneNodeCount * INITIAL_ROW_CAPACITY];
+        usedCellCount = cells.length;
+        rowOffsets = new int[geneNodeCount];
+        rowCapacities = new int[geneNodeCount];
+        for (int r = 0; r < geneNodeCount; r++) {
+            rowOffsets[r] = r * INITIAL_ROW_CAPACITY;
+            rowCapacities[r] = INITIAL_ROW_CAPACITY;
+        }
+        rowLengths = new int[geneNodeCount];
     }
 
     public Embedding(Embedding src) {
         geneNodeCount = src.geneNodeCount;
         traversalNodeCount = src.traversalNodeCount;
-        embedding = new int[src.embedding.length];
-        System.arraycopy(src.embedding, 0, embedding, 0, embedding.length);
+        cells = src.cells.clone();
+        usedCellCount = src.usedCellCount;
+        rowOffsets = src.rowOffsets.clone();
+        rowCapacities = src.rowCapacities.clone();
+        rowLengths = src.rowLengths.clone();
         probability = src.probability;
         probabilitySum = src.probabilitySum;
     }
 
+    /**
+     * @return the embedding as a matrix with nrow=geneNodeCount and ncol=traversalNodeCount, in row-major order
+     * @deprecated the embedding is no longer stored as a matrix, so this builds a new one on every call
+     *             and changing it does not change the embedding; use getDirection instead
+     */
+    @Deprecated
     public int[] getEmbedding() {
+        final int[] embedding = new int[geneNodeCount * traversalNodeCount];
+        java.util.Arrays.fill(embedding, -1);
+        for (int r = 0; r < geneNodeCount; r++) {
+            final int offset = rowOffsets[r];
+            for (int i = offset; i < offset + rowLengths[r]; i++)
+                embedding[r * traversalNodeCount + (cells[i] >>> 16)] = cells[i] & 0xFFFF;
+        }
         return embedding;
     }
 
     public int getDirection(int geneNode, int traversalNode) {
-        final int i = (traversalNodeCount * geneNode) + traversalNode;
-        return embedding[i];
+        final int offset = rowOffsets[geneNode];
+        final int end = offset + rowLengths[geneNode];
+        for (int i = offset; i < end; i++) {
+            final int cell = cells[i];
+            if ((cell >>> 16) == traversalNode)
+                return cell & 0xFFFF;
+        }
+        return -1;
     }
 
     public void setDirection(int geneNode, int traversalNode, int value) {
-        final int i = (traversalNodeCount * geneNode) + traversalNode;
-        embedding[i] = value;
+        final int offset = rowOffsets[geneNode];
+        final int length = rowLengths[geneNode];
+        int i = offset;
+        while (i < offset + length && (cells[i] >>> 16) != traversalNode) i++;
+
+        if (value < 0) {
+            // remove the direction, moving the last one of the row into its place
+            if (i < offset + length) {
+                cells[i] = cells[offset + length - 1];
+                rowLengths[geneNode]--;
+            }
+            return;
+        }
+        if (traversalNode > 0xFFFF || value > 0xFFFF)
+            throw new RuntimeException("Species network is too large for the embedding!");
+
+        if (i == offset + length) {
+            if (length == rowCapacities[geneNode]) {
+                growRow(geneNode);
+                i = rowOffsets[geneNode] + length;
+            }
+            rowLengths[geneNode]++;
+        }
+        cells[i] = (traversalNode << 16) | value;
+    }
+
+    /**
+     * set all the directions of the gene node to -1
+     */
+    public void clearDirections(int geneNode) {
+        rowLengths[geneNode] = 0;
+    }
+
+    private void growRow(int row) {
+        final int capacity = rowCapacities[row];
+        final int offset = rowOffsets[row];
+        // the last row grows in place, any other row is moved to the end
+        final int newOffset = offset + capacity == usedCellCount ? offset : usedCellCount;
+        final int newUsedCellCount = newOffset + capacity * 2;
+        if (newUsedCellCount > cells.length)
+            cells = java.util.Arrays.copyOf(cells, Math.max(cells.length * 2, newUsedCellCount));
+        if (newOffset != offset)
+            System.arraycopy(cells, offset, cells, newOffset, rowLengths[row]);
+        rowOffsets[row] = newOffset;
+        rowCapacities[row] = capacity * 2;
+        usedCellCount = newUsedCellCount;
     }
 
     public void reset(int tnc) {
-        // assume that geneNodeCount is not changed and only check traversalNodeCount
-        if (traversalNodeCount != tnc) {
-            traversalNodeCount = tnc;
-            embedding = new int[geneNodeCount * traversalNodeCount];
-        }
-        java.util.Arrays.fill(embedding, -1);
+        // assume that geneNodeCount is not changed
+        traversalNodeCount = tnc;
+        java.util.Arrays.fill(rowLengths, 0);
     }
 
     public void copyFrom(Embedding src) {
-        // assume that geneNodeCount is not changed and only check traversalNodeCount
-        if (traversalNodeCount != src.traversalNodeCount) {
-            traversalNodeCount = src.traversalNodeCount;
-            embedding = new int[src.embedding.length];
+        traversalNodeCount = src.traversalNodeCount;
+        // the buffers are reused unless the size of the gene tree differs or the cells do not fit
+        if (geneNodeCount != src.geneNodeCount) {
+            geneNodeCount = src.geneNodeCount;
+            rowOffsets = new int[geneNodeCount];
+            rowCapacities = new int[geneNodeCount];
+            rowLengths = new int[geneNodeCount];
         }
-        System.arraycopy(src.embedding, 0, embedding, 0, embedding.length);
+        if (cells.length < src.usedCellCount)
+            cells = new int[src.cells.length];
+        System.arraycopy(src.cells, 0, cells, 0, src.usedCellCount);
+        usedCellCount = src.usedCellCount;
+        System.arraycopy(src.rowOffsets, 0, rowOffsets, 0, geneNodeCount);
+        System.arraycopy(src.rowCapacities, 0, rowCapacities, 0, geneNodeCount);
+        System.arraycopy(src.rowLengths, 0, rowLengths, 0, geneNodeCount);
         probability = src.probability;
         probabilitySum = src.probabilitySum;
     }
@@ -70,19 +156,22 @@ public class Embedding {
 
         probability *= src.probability;
         probabilitySum *= src.probabilitySum;
-        for (int i = 0; i < embedding.length; i++) {
-            if (embedding[i] == -1)
-                embedding[i] = src.embedding[i];
+        for (int r = 0; r < geneNodeCount; r++) {
+            final int offset = src.rowOffsets[r];
+            for (int i = offset; i < offset + src.rowLengths[r]; i++) {
+                final int traversalNode = src.cells[i] >>> 16;
+                if (getDirection(r, traversalNode) == -1)
+                    setDirection(r, traversalNode, src.cells[i] & 0xFFFF);
+            }
         }
     }
 
     public String rowToString(int row) {
         StringBuilder str = new StringBuilder();
-        final int offset = row * traversalNodeCount;
-        str.append(embedding[offset]);
+        str.append(getDirection(row, 0));
         for (int i = 1; i < traversalNodeCount; i++) {
             str.append(' ');
-            str.append(embedding[offset + i]);
+            str.append(getDirection(row, i));
         }
         return str.toString();
     }
@@ -90,10 +179,9 @@ public class Embedding {
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
-        str.append(embedding[0]);
-        for (int i = 1; i < embedding.length; i++) {
-            str.append(' ');
-            str.append(embedding[i]);
+        for (int r = 0; r < geneNodeCount; r++) {
+            if (r > 0) str.append(' ');
+            str.append(rowToString(r));
         }
         return str.toString();
     }
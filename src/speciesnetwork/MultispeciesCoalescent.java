@@ -4,18 +4,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multiset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import beast.base.core.Description;
 import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.State;
-import beast.base.evolution.tree.Node;
 
 /**
  * @author Huw Ogilvie
@@ -30,19 +27,114 @@ public class MultispeciesCoalescent extends Distribution {
             new Input<>("geneTree", "Gene tree embedded in the species network.", new ArrayList<>());
     public final Input<PopulationSizeModel> populationModelInput =
             new Input<>("populationModel", "The species network population model.", Validate.REQUIRED);
+    public final Input<Integer> threadsInput = new Input<>("threads",
+            "Number of chunks the gene trees are split into when the species network changes, each traversed as one " +
+            "task on the common fork/join pool, which sets the number of threads used (default is 1).", 1);
 
     private int nGeneTrees;
+    private double[] genePloidy;
+    private double[] geneLogPloidy;
+    // accumulate the sufficient statistics of each branch instead of passing the coalescent times to the population model
+    private boolean useSufficientStatistics;
+
+    // statistics of each gene tree in each species branch, with a spare buffer per gene tree
+    private GeneStatistics[] geneStatistics;
+    private GeneStatistics[] storedGeneStatistics;
+    private GeneStatistics[] spareGeneStatistics;
+    private int maxEventCount;
+
+    // gene trees are traversed in chunks, each chunk with its own buffers
+    private TraversalBuffers[] chunkBuffers;
+    private List<Callable<Double>> chunkTasks;
+    private ForkJoinPool forkJoinPool;
+    // state of the current calculation shared by all chunks
+    private boolean networkIsDirty;
+
+    // heights of the start (rootward) and end (tipward) of each species branch
+    private double[] branchTopHeights;
+    private double[] branchBottomHeights;
 
-    // list of map(species branch -> [coalescent times]) for each gene
-    private final List<ListMultimap<Integer, Double>> coalescentTimes = new ArrayList<>();
-    // list of set(species branch number) counting lineages at the tipward end of each species branch
-    private final List<Multiset<Integer>> bottomLineageCounts = new ArrayList<>();
-    // sum of the log inheritance probabilities (log(Lambda), part of log[f(G|Psi)])
-    private double logGammaSum;
+    // statistics of all gene trees in one species branch, passed to the population model
+    private int[] branchLineageCounts;
+    private int[] branchEventCounts;
+    // the coalescent times of each gene tree in the branch start at branchGeneTimes[j][branchTimeOffsets[j]]
+    private double[][] branchGeneTimes;
+    private int[] branchTimeOffsets;
+
+    /* Coalescent statistics of one gene tree in every species branch. The coalescent times in species branch "i"
+       are coalescentTimes[timeOffsets[i]] ... coalescentTimes[timeOffsets[i + 1] - 1], in ascending order. */
+    private static class GeneStatistics {
+        // number of lineages at the tipward end of each species branch
+        final int[] lineageCounts;
+        final int[] timeOffsets;
+        final double[] coalescentTimes;
+        // sum of (interval length * number of lineage pairs) / ploidy in each species branch (sufficient statistics only)
+        final double[] pairTimes;
+        double logGammaSum;
+
+        GeneStatistics(int branchCount, int eventCapacity) {
+            lineageCounts = new int[branchCount];
+            timeOffsets = new int[branchCount + 1];
+            coalescentTimes = new double[eventCapacity];
+            pairTimes = new double[branchCount];
+        }
 
-    private final List<int[]> allLineageCounts = new ArrayList<>();
-    private final List<int[]> allEventCounts = new ArrayList<>();
-    private final List<List<Double[]>> allCoalescentTimes = new ArrayList<>();
+        int getBranchCount() {
+            return lineageCounts.length;
+        }
+
+        int getEventCount(int i) {
+            return timeOffsets[i + 1] - timeOffsets[i];
+        }
+
+        boolean equalsInBranch(GeneStatistics other, int i) {
+            if (lineageCounts[i] != other.lineageCounts[i] || getEventCount(i) != other.getEventCount(i) ||
+                    pairTimes[i] != other.pairTimes[i])
+                return false;
+            for (int k = timeOffsets[i], l = other.timeOffsets[i]; k < timeOffsets[i + 1]; k++, l++) {
+                if (coalescentTimes[k] != other.coalescentTimes[l])
+                    return false;
+            }
+            return true;
+        }
+
+        void copyFrom(GeneStatistics src) {
+            final int branchCount = getBranchCount();
+            System.arraycopy(src.lineageCounts, 0, lineageCounts, 0, branchCount);
+            System.arraycopy(src.timeOffsets, 0, timeOffsets, 0, branchCount + 1);
+            System.arraycopy(src.coalescentTimes, 0, coalescentTimes, 0, src.timeOffsets[branchCount]);
+            System.arraycopy(src.pairTimes, 0, pairTimes, 0, branchCount);
+            logGammaSum = src.logGammaSum;
+        }
+    }
+
+    /* Buffers used to traverse the gene trees of one chunk. Each chunk is traversed by one thread at a time,
+       and the changed species branches of all chunks are combined after the traversal. */
+    private static class TraversalBuffers {
+        // statistics of the gene tree being traversed, before being compared to the cached statistics
+        GeneStatistics statistics;
+        // species branch number and time of each coalescent event, in the order of traversal
+        final int[] eventBranches;
+        final double[] eventTimes;
+        int eventCount;
+        // sum of the log inheritance probabilities (log(Lambda), part of log[f(G|Psi)])
+        double logGammaSum;
+        // species branches where the statistics of any gene tree in this chunk changed
+        boolean[] changedBranches;
+        boolean allBranchesChanged;
+        // gene tree nodes still to be traversed, with the species node and branch of the lineage above each of them
+        final int[] geneNodeStack;
+        final NetworkNode[] speciesNodeStack;
+        final int[] speciesBranchStack;
+
+        TraversalBuffers(int eventCapacity, int stackCapacity) {
+            eventBranches = new int[eventCapacity];
+            eventTimes = new double[eventCapacity];
+            geneNodeStack = new int[stackCapacity];
+            speciesNodeStack = new NetworkNode[stackCapacity];
+            speciesBranchStack = new int[stackCapacity];
+        }
+    }
 
     @Override
     public void initAndValidate() {
@@ -56,6 +148,46 @@ public class MultispeciesCoalescent extends Distribution {
         final int speciesBranchCount = speciesNetwork.getBranchCount();
         final PopulationSizeModel populationModel = populationModelInput.get();
         populationModel.initPopSizes(speciesBranchCount);
+        useSufficientStatistics = populationModel.usesSufficientStatistics();
+
+        geneStatistics = new GeneStatistics[nGeneTrees];
+        storedGeneStatistics = new GeneStatistics[nGeneTrees];
+        spareGeneStatistics = new GeneStatistics[nGeneTrees];
+
+        // each internal node of a gene tree is a coalescent event
+        genePloidy = new double[nGeneTrees];
+        geneLogPloidy = new double[nGeneTrees];
+        maxEventCount = 0;
+        int maxNodeCount = 0;
+        for (int j = 0; j < nGeneTrees; j++) {
+            final EmbeddedTree geneTree = geneTrees.get(j);
+            genePloidy[j] = geneTree.ploidy;
+            geneLogPloidy[j] = Math.log(geneTree.ploidy);
+            final int internalNodeCount = geneTree.getInternalNodeCount();
+            maxEventCount = Math.max(maxEventCount, internalNodeCount);
+            maxNodeCount = Math.max(maxNodeCount, geneTree.getNodeCount());
+        }
+        branchLineageCounts = new int[nGeneTrees];
+        branchEventCounts = new int[nGeneTrees];
+        branchGeneTimes = new double[nGeneTrees][];
+        branchTimeOffsets = new int[nGeneTrees];
+
+        final int nThreads = Math.max(1, Math.min(threadsInput.get(), nGeneTrees));
+        chunkBuffers = new TraversalBuffers[nThreads];
+        chunkTasks = new ArrayList<>(nThreads);
+        for (int t = 0; t < nThreads; t++) {
+            final TraversalBuffers buffers = new TraversalBuffers(maxEventCount, maxNodeCount);
+            chunkBuffers[t] = buffers;
+            // contiguous chunks of gene trees
+            final int from = nGeneTrees * t / nThreads;
+            final int to = nGeneTrees * (t + 1) / nThreads;
+            chunkTasks.add(() -> traverseGeneTrees(from, to, buffers));
+        }
+        /* The chunks run on the common pool, whose daemon threads are shared by the whole run and need no shutting
+           down, rather than on a pool of our own which would outlive the run. So "threads" only sets the number of
+           chunks: at most that many tasks run at once, and fewer if the common pool is smaller. */
+        if (nThreads > 1)
+            forkJoinPool = ForkJoinPool.commonPool();
     }
 
     @Override
@@ -65,140 +197,322 @@ public class MultispeciesCoalescent extends Distribution {
     }
 
     /**
+     * Only gene trees that have been edited (or all gene trees if the species network has been edited)
+     * are traversed again, and only species branches whose statistics changed are recalculated.
      * @return the coalescent probability of gene trees embedded in the species network
      */
     public double coalescentProb() {
         final Network speciesNetwork = speciesNetworkInput.get();
-        final List<EmbeddedTree> geneTrees = geneTreesInput.get();
         // SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin()); // species network should not be insane
 
         final int speciesBranchCount = speciesNetwork.getBranchCount();
-        final NetworkNode speciesNetworkRoot = speciesNetwork.getRoot();
-        final Integer speciesRootBranchNumber = speciesNetworkRoot.gammaBranchNumber;
 
-        coalescentTimes.clear();
-        bottomLineageCounts.clear();
-        logGammaSum = 0.0;
+        // the branch numbering has changed (or nothing has been calculated yet), start from scratch
+        final PopulationSizeModel populationModel = populationModelInput.get();
+        final boolean updateAll = populationModel.initBranchCache(speciesBranchCount);
+        networkIsDirty = updateAll || speciesNetwork.somethingIsDirty();
+        if (branchTopHeights == null || branchTopHeights.length != speciesBranchCount) {
+            branchTopHeights = new double[speciesBranchCount];
+            branchBottomHeights = new double[speciesBranchCount];
+        }
+        // the end nodes of the branches only depend on the topology
+        final NetworkTopology topology = speciesNetwork.getTopology();
+        final int[] parentNodeOfBranch = topology.getParentNodeOfBranch();
+        final int[] childNodeOfBranch = topology.getChildNodeOfBranch();
+        for (int i = 0; i < speciesBranchCount; i++) {
+            final NetworkNode snNode = speciesNetwork.getNode(childNodeOfBranch[i]);
+            final NetworkNode parentNode = speciesNetwork.getNode(parentNodeOfBranch[i]);
+            branchTopHeights[i] = parentNode.isOrigin() ? Double.POSITIVE_INFINITY : parentNode.getHeight();
+            branchBottomHeights[i] = snNode.getHeight();
+            // a species branch changes if the height of its end nodes (or the topology) has changed
+            if (snNode.isDirty != Network.IS_CLEAN || parentNode.isDirty != Network.IS_CLEAN)
+                populationModel.setBranchDirty(i);
+        }
+        for (TraversalBuffers buffers : chunkBuffers) {
+            if (buffers.statistics == null || buffers.statistics.getBranchCount() != speciesBranchCount) {
+                buffers.statistics = new GeneStatistics(speciesBranchCount, maxEventCount);
+                buffers.changedBranches = new boolean[speciesBranchCount];
+            }
+        }
+
         // collect the coalescent times of each gene tree in each species branch, also calculate log(Lambda)
-        for (EmbeddedTree geneTree : geneTrees) {
-            final Embedding embedding = geneTree.embedding;
-            final Node geneTreeRoot = geneTree.getRoot();
+        double logProb = 0.0;
+        try {
+            if (forkJoinPool != null && networkIsDirty) {
+                // every gene tree has to be traversed, so do it in parallel
+                for (Future<Double> chunkLogGammaSum : forkJoinPool.invokeAll(chunkTasks))
+                    logProb += chunkLogGammaSum.get();
+            } else {
+                for (Callable<Double> chunkTask : chunkTasks)
+                    logProb += chunkTask.call();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
 
-            ListMultimap<Integer, Double> coalescentTimesJ = ArrayListMultimap.create();
-            Multiset<Integer> bottomLineageCountsJ = HashMultiset.create();  // empty
-            /* The recursion starts from the root of gene tree and root of species network, and moves forward in time.
+        // combine the changed species branches of all chunks
+        for (TraversalBuffers buffers : chunkBuffers) {
+            if (buffers.allBranchesChanged)
+                populationModel.setAllBranchesDirty();
+            for (int i = 0; i < speciesBranchCount; i++) {
+                if (buffers.changedBranches[i])
+                    populationModel.setBranchDirty(i);
+            }
+        }
+
+        // now calculate coalescent prob. by looping over the species branches
+        for (int i = 0; i < speciesBranchCount; i++) {
+            if (populationModel.branchRequiresRecalculation(i))
+                populationModel.setBranchLogP(i, branchProb(i));
+            logProb += populationModel.getBranchLogP(i);
+        }
+
+        return logProb;
+    }
+
+    // transpose gene-branch statistics to the branch-gene statistics of species branch "i"
+    private double branchProb(int i) {
+        final PopulationSizeModel populationModel = populationModelInput.get();
+
+        if (useSufficientStatistics) {
+            // sum the statistics of this branch over genes, the coalescent times are not needed
+            int branchQ = 0;
+            double branchGamma = 0.0;
+            double branchLogR = 0.0;
+            for (int j = 0; j < nGeneTrees; j++) {
+                final GeneStatistics statistics = geneStatistics[j];
+                final int geneK = statistics.getEventCount(i);
+                branchLogR -= geneK * geneLogPloidy[j];
+                branchQ += geneK;
+                branchGamma += statistics.pairTimes[i];
+            }
+            return populationModel.branchLogP(i, branchQ, branchGamma, branchLogR);
+        }
+
+        for (int j = 0; j < nGeneTrees; j++) {  // gene tree "j"
+            final GeneStatistics statistics = geneStatistics[j];
+            // number of lineages at the tipward end of species branch "i"
+            branchLineageCounts[j] = statistics.lineageCounts[i];
+            // number of coalescent events in species branch "i" (the times are already sorted)
+            branchEventCounts[j] = statistics.getEventCount(i);
+            // the coalescent times are read in place from the statistics of gene tree "j"
+            branchGeneTimes[j] = statistics.coalescentTimes;
+            branchTimeOffsets[j] = statistics.timeOffsets[i];
+        }
+
+        return populationModel.branchLogP(i, genePloidy, branchTopHeights[i], branchBottomHeights[i],
+                                          branchGeneTimes, branchTimeOffsets, branchLineageCounts, branchEventCounts);
+    }
+
+    /**
+     * Traverse the gene trees from "from" to "to" - 1 which have changed, and mark the changed species branches.
+     * @return the sum of log(Lambda) of these gene trees
+     */
+    private double traverseGeneTrees(int from, int to, TraversalBuffers buffers) {
+        final Network speciesNetwork = speciesNetworkInput.get();
+        final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+        final NetworkNode speciesNetworkRoot = speciesNetwork.getRoot();
+        final int speciesRootBranchNumber = speciesNetworkRoot.gammaBranchNumber;
+        final GeneStatistics newStatistics = buffers.statistics;
+        final int speciesBranchCount = newStatistics.getBranchCount();
+
+        Arrays.fill(buffers.changedBranches, false);
+        buffers.allBranchesChanged = false;
+        double chunkLogGammaSum = 0.0;
+        for (int j = from; j < to; j++) {
+            final EmbeddedTree geneTree = geneTrees.get(j);
+            final GeneStatistics oldStatistics = geneStatistics[j];
+            if (!networkIsDirty && !geneTree.somethingIsDirty() && oldStatistics != null) {
+                // nothing has changed for this gene tree
+                chunkLogGammaSum += oldStatistics.logGammaSum;
+                continue;
+            }
+
+            Arrays.fill(newStatistics.lineageCounts, 0);
+            buffers.eventCount = 0;
+            buffers.logGammaSum = 0.0;
+            /* The traversal starts from the root of gene tree and root of species network, and moves forward in time.
                Typically, the root age of gene tree is larger than the root age of species network, but it is not always
                the case due to reticulations in the network or incomplete sampling of individuals in the gene tree. */
             try {
-                recurseCoalescentEvents(geneTreeRoot, speciesNetworkRoot, speciesRootBranchNumber, Double.POSITIVE_INFINITY,
-                                        embedding, coalescentTimesJ, bottomLineageCountsJ);
+                traverseCoalescentEvents(geneTree, speciesNetworkRoot, speciesRootBranchNumber, buffers);
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            groupEventsByBranch(buffers);
+            newStatistics.logGammaSum = buffers.logGammaSum;
+            if (useSufficientStatistics) {
+                for (int i = 0; i < speciesBranchCount; i++) {
+                    final int lineageCount = newStatistics.lineageCounts[i];
+                    newStatistics.pairTimes[i] = lineageCount < 2 ? 0.0 :
+                            PopulationSizeModel.lineagePairTime(lineageCount, branchTopHeights[i], branchBottomHeights[i],
+                                    newStatistics.coalescentTimes, newStatistics.timeOffsets[i], newStatistics.getEventCount(i))
+                            / genePloidy[j];
+                }
+            }
 
-            coalescentTimes.add(coalescentTimesJ);
-            bottomLineageCounts.add(bottomLineageCountsJ);
+            // mark the species branches where the coalescent times or lineage counts of this gene tree have changed
+            if (oldStatistics == null || oldStatistics.getBranchCount() != speciesBranchCount) {
+                buffers.allBranchesChanged = true;
+            } else {
+                for (int i = 0; i < speciesBranchCount; i++) {
+                    if (!newStatistics.equalsInBranch(oldStatistics, i))
+                        buffers.changedBranches[i] = true;
+                }
+            }
+            getWritableStatistics(j, speciesBranchCount).copyFrom(newStatistics);
+            chunkLogGammaSum += newStatistics.logGammaSum;
         }
 
-        // reset all the counters
-        allLineageCounts.clear();
-        allEventCounts.clear();
-        allCoalescentTimes.clear();
-        for (int i = 0; i < speciesBranchCount; i++) {
-            allLineageCounts.add(new int[nGeneTrees]);
-            allEventCounts.add(new int[nGeneTrees]);
-            allCoalescentTimes.add(new ArrayList<>());
+        return chunkLogGammaSum;
+    }
+
+    // sort the traversed coalescent events by species branch (counting sort), then by time within each branch
+    private void groupEventsByBranch(TraversalBuffers buffers) {
+        final GeneStatistics statistics = buffers.statistics;
+        final int[] eventBranches = buffers.eventBranches;
+        final double[] eventTimes = buffers.eventTimes;
+        final int eventCount = buffers.eventCount;
+        final int[] timeOffsets = statistics.timeOffsets;
+        final double[] coalescentTimes = statistics.coalescentTimes;
+        final int branchCount = statistics.getBranchCount();
+
+        Arrays.fill(timeOffsets, 0);
+        for (int k = 0; k < eventCount; k++) {
+            timeOffsets[eventBranches[k] + 1]++;
+        }
+        for (int i = 0; i < branchCount; i++) {
+            timeOffsets[i + 1] += timeOffsets[i];
+        }
+        // timeOffsets[i] is used as the insertion point of branch "i", and ends up at the start of branch "i + 1"
+        for (int k = 0; k < eventCount; k++) {
+            coalescentTimes[timeOffsets[eventBranches[k]]++] = eventTimes[k];
+        }
+        for (int i = branchCount; i > 0; i--) {
+            timeOffsets[i] = timeOffsets[i - 1];
         }
+        timeOffsets[0] = 0;
 
-        // transpose gene-branch list of lists to branch-gene list of lists
-        final double[] genePloidy = new double[nGeneTrees];
-        for (int j = 0; j < nGeneTrees; j++) {  // gene tree "j"
-            for (int i = 0; i < speciesBranchCount; i++) {  // species network branch "i"
-                // number of lineages at the tipward end of species branch "i"
-                final int lineageCount = bottomLineageCounts.get(j).count(i);
-
-                // number of coalescent events in species branch "i"
-                final List<Double> timesView = coalescentTimes.get(j).get(i);
-                final int eventCount = timesView.size();
-
-                // add branch start and end times to the coalescent times
-                final Double[] coalTimes = new Double[eventCount + 2];
-                timesView.toArray(coalTimes);
-                final int networkNodeNr = speciesNetwork.getNodeNumber(i);
-                final NetworkNode snNode = speciesNetwork.getNode(networkNodeNr);
-                final NetworkNode parentNode = snNode.getParentByBranch(i);
-                if (parentNode.isOrigin())
-                    coalTimes[eventCount] = Double.POSITIVE_INFINITY;
-                else
-                    coalTimes[eventCount] = parentNode.getHeight();
-                coalTimes[eventCount + 1] = snNode.getHeight();
-                // sort times of coalescent events in ascending order
-                Arrays.sort(coalTimes);
-
-                // collect things together
-                allEventCounts.get(i)[j] = eventCount;
-                allLineageCounts.get(i)[j] = lineageCount;
-                allCoalescentTimes.get(i).add(coalTimes);
+        // there are only a few events per branch, so insertion sort is fast
+        for (int i = 0; i < branchCount; i++) {
+            for (int k = timeOffsets[i] + 1; k < timeOffsets[i + 1]; k++) {
+                final double time = coalescentTimes[k];
+                int l = k - 1;
+                while (l >= timeOffsets[i] && coalescentTimes[l] > time) {
+                    coalescentTimes[l + 1] = coalescentTimes[l];
+                    l--;
+                }
+                coalescentTimes[l + 1] = time;
             }
-            genePloidy[j] = geneTrees.get(j).ploidy;
         }
+    }
 
-        // now calculate coalescent prob. by looping over the species branches
-        final PopulationSizeModel populationModel = populationModelInput.get();
+    // the statistics buffer of gene tree "j" which is not shared with the stored state
+    private GeneStatistics getWritableStatistics(int j, int branchCount) {
+        GeneStatistics statistics = geneStatistics[j];
+        if (statistics == null || statistics == storedGeneStatistics[j] || statistics.getBranchCount() != branchCount) {
+            statistics = spareGeneStatistics[j];
+            spareGeneStatistics[j] = null;
+            if (statistics == null || statistics.getBranchCount() != branchCount)
+                statistics = new GeneStatistics(branchCount, maxEventCount);
+            geneStatistics[j] = statistics;
+        }
+        return statistics;
+    }
 
-        double logProb = logGammaSum;
-        for (int i = 0; i < speciesBranchCount; i++) {
-            final List<Double[]> branchCoalescentTimes = allCoalescentTimes.get(i);
-            final int[] branchLineageCounts = allLineageCounts.get(i);
-            final int[] branchEventCounts = allEventCounts.get(i);
+    /* Follow each gene lineage down the species network along the embedding, counting the lineages at the bottom of
+       each species branch and recording the coalescent events. The gene tree nodes are visited in pre-order from an
+       explicit stack rather than by recursion, so deep gene trees do not overflow the call stack. */
+    private void traverseCoalescentEvents(EmbeddedTree geneTree, NetworkNode speciesNetworkRoot, int speciesRootBranchNumber,
+                                          TraversalBuffers buffers) {
+        geneTree.updateTraversalArrays();
+        final int[] geneChildNumbers = geneTree.getChildNumbers();
+        final double[] geneNodeHeights = geneTree.getNodeHeights();
+        final Embedding embedding = geneTree.embedding;
+        final int[] lineageCounts = buffers.statistics.lineageCounts;
+        final int[] geneNodeStack = buffers.geneNodeStack;
+        final NetworkNode[] speciesNodeStack = buffers.speciesNodeStack;
+        final int[] speciesBranchStack = buffers.speciesBranchStack;
 
-            logProb += populationModel.branchLogP(i, genePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
-        }
+        int stackSize = 0;
+        geneNodeStack[stackSize] = geneTree.getRoot().getNr();
+        speciesNodeStack[stackSize] = speciesNetworkRoot;
+        speciesBranchStack[stackSize] = speciesRootBranchNumber;
+        stackSize++;
+        while (stackSize > 0) {
+            stackSize--;
+            final int geneTreeNodeNumber = geneNodeStack[stackSize];
+            NetworkNode speciesNetworkNode = speciesNodeStack[stackSize];
+            int speciesBranchNumber = speciesBranchStack[stackSize];
+            final double geneNodeHeight = geneNodeHeights[geneTreeNodeNumber];
+            final boolean geneNodeIsLeaf = geneChildNumbers[2 * geneTreeNodeNumber] < 0;
 
-        return logProb;
-    }
+            while (!(geneNodeIsLeaf && speciesNetworkNode.isLeaf()) &&
+                    geneNodeHeight <= speciesNetworkNode.getHeight()) {
+                // current gene tree node occurs in a descendant branch of current species node
+                lineageCounts[speciesBranchNumber]++;
+                if (speciesNetworkNode.isReticulation()) {
+                    final double gamma = speciesNetworkNode.inheritProb;
+                    if (speciesNetworkNode.gammaBranchNumber == speciesBranchNumber) {
+                        buffers.logGammaSum += Math.log(gamma);
+                    } else {
+                        buffers.logGammaSum += Math.log(1.0 - gamma);
+                    }
+                }
+                // move on to the descendant species node (traversal direction forward in time)
+                final int traversalNodeNumber = speciesNetworkNode.getTraversalNumber();
+                speciesBranchNumber = embedding.getDirection(geneTreeNodeNumber, traversalNodeNumber);
+                assert (speciesBranchNumber >= 0);
+                speciesNetworkNode = speciesNetworkNode.getChildByBranch(speciesBranchNumber);
+                assert speciesNetworkNode != null;
+            }
 
-    private void recurseCoalescentEvents(Node geneTreeNode, NetworkNode speciesNetworkNode, Integer speciesBranchNumber, double lastHeight,
-                                         Embedding embedding, ListMultimap<Integer, Double> coalTimes, Multiset<Integer> bottomBrNrs) {
-        final double geneNodeHeight = geneTreeNode.getHeight();
-        final double speciesNodeHeight = speciesNetworkNode.getHeight();
-        final int geneTreeNodeNumber = geneTreeNode.getNr();
-
-        if (geneTreeNode.isLeaf() && speciesNetworkNode.isLeaf()) {
-            // reach the tip with height >= 0, gene tree tip height == species tip height
-            // speciesOccupancy[geneTreeNodeNumber][speciesBranchNumber] = lastHeight - speciesNodeHeight;
-            bottomBrNrs.add(speciesBranchNumber);
-        }
-        else if (geneNodeHeight <= speciesNodeHeight) {
-            // current gene tree node occurs in a descendant branch of current species node
-            // speciesOccupancy[geneTreeNodeNumber][speciesBranchNumber] = lastHeight - speciesNodeHeight;
-            bottomBrNrs.add(speciesBranchNumber);
-            if (speciesNetworkNode.isReticulation()) {
-                final double gamma = speciesNetworkNode.inheritProb;
-                if (speciesNetworkNode.gammaBranchNumber.equals(speciesBranchNumber)) {
-                    logGammaSum += Math.log(gamma);
-                } else {
-                    logGammaSum += Math.log(1.0 - gamma);
+            if (geneNodeIsLeaf && speciesNetworkNode.isLeaf()) {
+                // reach the tip with height >= 0, gene tree tip height == species tip height
+                lineageCounts[speciesBranchNumber]++;
+            } else {
+                // current gene tree node occurs above current species node
+                buffers.eventBranches[buffers.eventCount] = speciesBranchNumber;
+                buffers.eventTimes[buffers.eventCount] = geneNodeHeight;
+                buffers.eventCount++;
+                // move on to the descendant gene tree nodes, pushed in reverse so the first child is visited first
+                for (int c = 1; c >= 0; c--) {
+                    final int geneChildNumber = geneChildNumbers[2 * geneTreeNodeNumber + c];
+                    if (geneChildNumber < 0) continue;
+                    geneNodeStack[stackSize] = geneChildNumber;
+                    speciesNodeStack[stackSize] = speciesNetworkNode;
+                    speciesBranchStack[stackSize] = speciesBranchNumber;
+                    stackSize++;
                 }
             }
-            // move on to the descendant species node (traversal direction forward in time)
-            final int traversalNodeNumber = speciesNetworkNode.getTraversalNumber();
-            final Integer nextSpeciesBranchNumber = embedding.getDirection(geneTreeNodeNumber, traversalNodeNumber);
-            assert (nextSpeciesBranchNumber >= 0);
-            final NetworkNode nextSpeciesNode = speciesNetworkNode.getChildByBranch(nextSpeciesBranchNumber);
-            assert nextSpeciesNode != null;
-            recurseCoalescentEvents(geneTreeNode, nextSpeciesNode, nextSpeciesBranchNumber, speciesNodeHeight,
-                                    embedding, coalTimes, bottomBrNrs);
-        } else {
-            // current gene tree node occurs above current species node
-            // speciesOccupancy[geneTreeNodeNumber][speciesBranchNumber] = lastHeight - geneNodeHeight;
-            coalTimes.put(speciesBranchNumber, geneNodeHeight);
-            // move on to the descendant gene tree nodes (traversal direction forward in time)
-            for (Node geneChildNode : geneTreeNode.getChildren()) {
-                recurseCoalescentEvents(geneChildNode, speciesNetworkNode, speciesBranchNumber, geneNodeHeight,
-                                        embedding, coalTimes, bottomBrNrs);
+        }
+    }
+
+    @Override
+    public void store() {
+        for (int j = 0; j < nGeneTrees; j++) {
+            if (geneStatistics[j] != storedGeneStatistics[j]) {
+                spareGeneStatistics[j] = storedGeneStatistics[j];
+                storedGeneStatistics[j] = geneStatistics[j];
+            }
+        }
+        // the population model might not be in the calculation path if none of its parameters are estimated
+        populationModelInput.get().storeBranchLogPs();
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        for (int j = 0; j < nGeneTrees; j++) {
+            if (geneStatistics[j] != storedGeneStatistics[j]) {
+                spareGeneStatistics[j] = geneStatistics[j];
+                geneStatistics[j] = storedGeneStatistics[j];
             }
         }
+        populationModelInput.get().restoreBranchLogPs();
+
+        super.restore();
     }
 
     @Override
@@ -5,7 +5,9 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
@@ -56,7 +58,41 @@ public class Network extends StateNode {
      */
     protected NetworkNode[] nodes = null;
     private NetworkNode[] storedNodes = null;
+    // changed whenever the topology or the node numbering of the network may have changed
+    private int topologyVersion = 0;
+    // node numbers at the two ends of each branch, indexed by branch number (including the origin branch)
+    int[] parentNodeOfBranch = new int[0];
+    int[] childNodeOfBranch = new int[0];
+    private int[] storedParentNodeOfBranch = new int[0];
+    private int[] storedChildNodeOfBranch = new int[0];
+    // topology version of the current nodes when the stored nodes were last linked, -1 if they need linking
+    private int storedLinkVersion = -1;
+    /* lineage-through-time index: node numbers in ascending order of height (ties broken by node number),
+       and the number of branches just above each of these nodes. It is updated lazily when queried, under the lock
+       of the network like getTopology(), so distributions calculated in parallel can share it.
+       NetworkNode.setHeight reports each height change. Heights written directly (by NetworkParser, by copyNodeValues
+       when a network is assigned, by restore, scale and adjustNodeHeights) must be followed by a topology version
+       change or heightChangedNodeNr = -2, so that the index is rebuilt when next queried. */
+    private int[] heightOrder = new int[0];
+    private int[] lineageCounts = new int[0];
+    private int heightOrderVersion = -1;
+    // the only node whose height changed since the index was updated, -1 if none, -2 if more than one
+    private int heightChangedNodeNr = -2;
     private static Comparator<NetworkNode> hc = new NodeHeightComparator();
+    /* Structures derived from the numbered topologies visited recently, by numbering hash and in the order of use.
+       The key is the parent node number of each branch, not a canonical form of the topology: the structures are
+       indexed by node number, so they can only be shared by the same numbering. This is what a rejected topology move
+       restores, and in a chain of topology moves most lookups find the structures of such a numbering. */
+    private static final int NUMBERING_CACHE_SIZE = 64;
+    private final Map<Long, NetworkTopology> numberingCache = new LinkedHashMap<Long, NetworkTopology>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, NetworkTopology> eldest) {
+            return size() > NUMBERING_CACHE_SIZE;
+        }
+    };
+    private NetworkTopology topology = null;
+    private int topologyCacheVersion = -1;
+    private int[] numberingKey = new int[0];
 
     // trait set which specifies leaf node times
     protected TraitSet timeTraitSet = null;
@@ -125,8 +161,44 @@ public class Network extends StateNode {
     }
 
     public void updateRelationships() {
+        final int tableSize = getBranchCount() + 1;
+        if (parentNodeOfBranch.length != tableSize) {
+            parentNodeOfBranch = new int[tableSize];
+            childNodeOfBranch = new int[tableSize];
+        }
+        linkNodes(nodes, getReticulationOffset(), parentNodeOfBranch, childNodeOfBranch);
+
         for (NetworkNode node: nodes) {
-            node.updateRelationships();
+            node.isDirty |= IS_DIRTY;
+        }
+        topologyVersion++;
+    }
+
+    /* set up node numbers, parents, children and the branch tables of a node array
+       in one pass over the child branch numbers, reusing the existing containers */
+    private static void linkNodes(NetworkNode[] nodeArray, int reticulationOffset,
+                                  int[] parentOfBranch, int[] childOfBranch) {
+        for (int b = 0; b < parentOfBranch.length; b++) {
+            parentOfBranch[b] = -1;
+            childOfBranch[b] = b < reticulationOffset ? b : (b - reticulationOffset) / 2 + reticulationOffset;
+        }
+        for (int i = 0; i < nodeArray.length; i++) {
+            final NetworkNode node = nodeArray[i];
+            node.nodeNumber = i;
+            node.gammaBranchNumber = i < reticulationOffset ? i : i * 2 - reticulationOffset;
+            node.parents.clear();
+            node.children.clear();
+        }
+        for (int i = 0; i < nodeArray.length; i++) {
+            final NetworkNode node = nodeArray[i];
+            final List<Integer> childBranchNrs = node.childBranchNumbers;
+            for (int k = 0; k < childBranchNrs.size(); k++) {
+                final int b = childBranchNrs.get(k);
+                final NetworkNode child = nodeArray[childOfBranch[b]];
+                parentOfBranch[b] = i;
+                node.children.add(child);
+                child.parents.add(node);
+            }
         }
     }
 
@@ -191,6 +263,96 @@ public class Network extends StateNode {
         final NetworkNode tmp = nodes[nodeI];
         nodes[nodeI] = nodes[nodeJ];
         nodes[nodeJ] = tmp;
+        topologyVersion++;
+    }
+
+    /**
+     * @return a number which changes whenever the topology or the node numbering of the network may have changed,
+     * so that structures derived from the topology can be cached
+     */
+    public int getTopologyVersion() {
+        return topologyVersion;
+    }
+
+    void topologyChanged() {
+        topologyVersion++;
+    }
+
+    /**
+     * @return the structures derived from the current topology, shared by everything using this network
+     */
+    public synchronized NetworkTopology getTopology() {
+        if (topology != null && topologyCacheVersion == topologyVersion)
+            return topology;
+
+        // the numbered topology is identified by the parent node number of each branch, taken from the nodes themselves
+        final int tableSize = getBranchCount() + 1;
+        if (numberingKey.length != tableSize)
+            numberingKey = new int[tableSize];
+        Arrays.fill(numberingKey, -1);
+        for (int i = 0; i < nodeCount; i++) {
+            for (Integer b : nodes[i].childBranchNumbers)
+                numberingKey[b] = i;
+        }
+        final long hash = NetworkTopology.numberingHashOf(leafNodeCount, speciationNodeCount, reticulationNodeCount, numberingKey);
+
+        topology = numberingCache.get(hash);
+        if (topology == null || !topology.matches(leafNodeCount, speciationNodeCount, reticulationNodeCount, numberingKey)) {
+            topology = new NetworkTopology(leafNodeCount, speciationNodeCount, reticulationNodeCount, numberingKey.clone(), hash);
+            numberingCache.put(hash, topology);
+        }
+        topologyCacheVersion = topologyVersion;
+        return topology;
+    }
+
+    /**
+     * @return a hash of the current topology and node numbering, equal for equal numbered topologies
+     * (the same topology numbered differently has a different hash)
+     */
+    public long getNumberingHash() {
+        return getTopology().getNumberingHash();
+    }
+
+    /**
+     * @return true if node "nodeNr" is node "ancestorNr" or below it, in constant time (see NetworkTopology)
+     */
+    public boolean isDescendant(int nodeNr, int ancestorNr) {
+        return getTopology().isDescendant(nodeNr, ancestorNr);
+    }
+
+    /**
+     * @return true if node "nodeNr" is node "descendantNr" or above it
+     */
+    public boolean isAncestor(int nodeNr, int descendantNr) {
+        return getTopology().isAncestor(nodeNr, descendantNr);
+    }
+
+    /**
+     * @return true if node "nodeNr" is the child node of branch "branchNr" or below it,
+     * i.e. a gene lineage in the branch can reach the node
+     */
+    public boolean isDescendantOfBranch(int nodeNr, int branchNr) {
+        return getTopology().isDescendantOfBranch(nodeNr, branchNr);
+    }
+
+    /**
+     * @return true if node "nodeNr" is the child node of any of the branches "branchNrs" or below it,
+     * i.e. a gene lineage has to pass through one of these branches to reach the node
+     */
+    public boolean isDescendantOfAnyBranch(int nodeNr, List<Integer> branchNrs) {
+        final NetworkTopology topology = getTopology();
+        for (int k = 0; k < branchNrs.size(); k++) {
+            if (topology.isDescendantOfBranch(nodeNr, branchNrs.get(k)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if branch "branchNr" is below node "nodeNr"
+     */
+    public boolean isBranchDescendant(int branchNr, int nodeNr) {
+        return getTopology().isBranchDescendant(branchNr, nodeNr);
     }
 
     /**
@@ -234,15 +396,106 @@ public class Network extends StateNode {
     /**
      * @return the number of branches at the given time
      */
-    public int getBranchCount(double time) {
-        int nB = 0;
-        for (NetworkNode node: nodes) {
-            for (NetworkNode child: node.getChildren()) {
-                if (node.getHeight() > time && child.getHeight() <= time)
-                    nB++;
+    public synchronized int getBranchCount(double time) {
+        updateHeightIndex();
+        // find the number of nodes not above the given time
+        int lower = 0, upper = nodeCount;
+        while (lower < upper) {
+            final int mid = (lower + upper) >>> 1;
+            if (nodes[heightOrder[mid]].height <= time)
+                lower = mid + 1;
+            else
+                upper = mid;
+        }
+        return lower == 0 ? 0 : lineageCounts[lower - 1];
+    }
+
+    /**
+     * @return node numbers in ascending order of node height, ties broken by node number
+     * (do not modify, the array is reused when the heights change)
+     */
+    public synchronized int[] getNodeNumbersByHeight() {
+        updateHeightIndex();
+        return heightOrder;
+    }
+
+    /**
+     * @return the number of branches just above the node of the given rank in the height order
+     */
+    public synchronized int getBranchCountAbove(final int rank) {
+        updateHeightIndex();
+        return lineageCounts[rank];
+    }
+
+    /* called when the height of a single node has been changed */
+    synchronized void nodeHeightChanged(final int nodeNr) {
+        if (nodeNr >= 0 && (heightChangedNodeNr == -1 || heightChangedNodeNr == nodeNr))
+            heightChangedNodeNr = nodeNr;
+        else
+            heightChangedNodeNr = -2;
+    }
+
+    private void updateHeightIndex() {
+        if (heightOrderVersion != topologyVersion || heightOrder.length != nodeCount ||
+                heightChangedNodeNr == -2 || heightChangedNodeNr >= nodeCount) {
+            if (heightOrder.length != nodeCount) {
+                heightOrder = new int[nodeCount];
+                lineageCounts = new int[nodeCount];
+                for (int i = 0; i < nodeCount; i++)
+                    heightOrder[i] = i;
+            }
+            // insertion sort, starting from the previous order which is usually almost sorted
+            for (int k = 1; k < nodeCount; k++) {
+                insertByHeight(k, 0, k);
             }
+            updateLineageCounts(0);
+        } else if (heightChangedNodeNr >= 0) {
+            // move the changed node to its new position
+            int k = 0;
+            while (heightOrder[k] != heightChangedNodeNr) k++;
+            final int newRank;
+            if (k > 0 && isLowerByHeight(heightChangedNodeNr, heightOrder[k - 1])) {
+                newRank = insertByHeight(k, 0, k);
+            } else {
+                for (int l = k; l < nodeCount - 1 && isLowerByHeight(heightOrder[l + 1], heightChangedNodeNr); l++) {
+                    heightOrder[l] = heightOrder[l + 1];
+                    heightOrder[l + 1] = heightChangedNodeNr;
+                }
+                newRank = k;
+            }
+            updateLineageCounts(Math.min(k, newRank));
+        }
+        heightOrderVersion = topologyVersion;
+        heightChangedNodeNr = -1;
+    }
+
+    /* insert the node at rank k into the sorted ranks [from, to), return its new rank */
+    private int insertByHeight(final int k, final int from, final int to) {
+        final int nodeNr = heightOrder[k];
+        int l = to;
+        while (l > from && isLowerByHeight(nodeNr, heightOrder[l - 1])) {
+            heightOrder[l] = heightOrder[l - 1];
+            l--;
+        }
+        heightOrder[l] = nodeNr;
+        return l;
+    }
+
+    private boolean isLowerByHeight(final int nodeNrA, final int nodeNrB) {
+        final double heightA = nodes[nodeNrA].height;
+        final double heightB = nodes[nodeNrB].height;
+        return heightA < heightB || (heightA == heightB && nodeNrA < nodeNrB);
+    }
+
+    /* each node adds the branches to its parents and ends the branches to its children */
+    private void updateLineageCounts(final int fromRank) {
+        final int reticulationOffset = getReticulationOffset();
+        for (int k = fromRank; k < nodeCount; k++) {
+            final int nodeNr = heightOrder[k];
+            final int nParents = nodeNr < reticulationOffset ? 1 : (nodeNr < nodeCount - 1 ? 2 : 0);
+            final int count = nParents - nodes[nodeNr].childBranchNumbers.size();
+            lineageCounts[k] = k == 0 ? count : lineageCounts[k - 1] + count;
         }
-        return nB;
     }
 
     public NetworkNode getNode(final int idx) {
@@ -313,14 +566,6 @@ public class Network extends StateNode {
         return reticulationNodes;
     }
 
-    /* set visited indicator to false for all nodes
-       This is typically called before a recursive function to avoid duplicated traversal in the network */
-    public void resetAllVisited() {
-        for (NetworkNode node: nodes) {
-            node.setVisited(false);
-        }
-    }
-
     /**
      * @return (gamma) branch number that corresponds to a node number
      */
@@ -336,7 +581,7 @@ public class Network extends StateNode {
     /**
      * @return node number that corresponds to a branch number
      */
-    public int getNodeNumber(final Integer branchNumber) {
+    public int getNodeNumber(final int branchNumber) {
         final int reticulationOffset = getReticulationOffset();
         if (branchNumber < reticulationOffset) {
             return branchNumber;
@@ -396,8 +641,10 @@ public class Network extends StateNode {
             for (final NetworkNode child : node.getChildren()) {
                 // bump up a small amount
                 final double minHeight = child.height + 0.001;
-                if (node.height < minHeight)
+                if (node.height < minHeight) {
                     node.height = minHeight;
+                    heightChangedNodeNr = -2;
+                }
             }
         }
     }
@@ -407,6 +654,7 @@ public class Network extends StateNode {
         int dof = 0;
         for (NetworkNode node : getInternalNodesWithOrigin()) {
             node.height *= scale;
+            heightChangedNodeNr = -2;
             dof++;
 
             // check for negative branch length
@@ -506,11 +754,35 @@ public class Network extends StateNode {
         storedSpeciationNodeCount = speciationNodeCount;
         storedLeafNodeCount = leafNodeCount;
         storedReticulationNodeCount = reticulationNodeCount;
-        storedNodes = new NetworkNode[nodeCount];
+        // the stored nodes are persistent shadows of the current nodes, only resized when the node count changes
+        if (storedNodes == null || storedNodes.length != nodeCount) {
+            final NetworkNode[] shadowNodes = new NetworkNode[nodeCount];
+            if (storedNodes != null)
+                System.arraycopy(storedNodes, 0, shadowNodes, 0, Math.min(storedNodes.length, nodeCount));
+            storedNodes = shadowNodes;
+            storedLinkVersion = -1;
+        }
 
+        /* The relationships of the stored nodes are prebuilt so that restore only needs to swap them in.
+           They are still valid if the topology has not changed since they were built, then only the values are copied. */
+        final boolean relink = storedLinkVersion != topologyVersion;
         for (int i = 0; i < nodeCount; i++) {
-            storedNodes[i] = new NetworkNode(this);
-            storedNodes[i].copyFrom(nodes[i]);
+            if (storedNodes[i] == null)
+                storedNodes[i] = new NetworkNode(this);
+            if (relink)
+                storedNodes[i].copyFrom(nodes[i]);
+            else
+                NetworkNode.copyNodeValues(nodes[i], storedNodes[i]);
+        }
+
+        if (relink) {
+            final int tableSize = getBranchCount() + 1;
+            if (storedParentNodeOfBranch.length != tableSize) {
+                storedParentNodeOfBranch = new int[tableSize];
+                storedChildNodeOfBranch = new int[tableSize];
+            }
+            linkNodes(storedNodes, getReticulationOffset(), storedParentNodeOfBranch, storedChildNodeOfBranch);
+            storedLinkVersion = topologyVersion;
         }
     }
 
@@ -537,12 +809,27 @@ public class Network extends StateNode {
         nodes = storedNodes;
         storedNodes = tmpNodes;
 
+        int[] tmpTable = parentNodeOfBranch;
+        parentNodeOfBranch = storedParentNodeOfBranch;
+        storedParentNodeOfBranch = tmpTable;
+        tmpTable = childNodeOfBranch;
+        childNodeOfBranch = storedChildNodeOfBranch;
+        storedChildNodeOfBranch = tmpTable;
+
         hasStartedEditing = false;
 
         for(NetworkNode node: nodes) {
-            node.updateRelationships();
             node.isDirty = IS_CLEAN;
         }
+        /* If the topology was unchanged since the last store, the swapped nodes are linked for the same topology and
+           numbering, so the structures derived from it stay valid. Otherwise the topology is back to the stored one. */
+        final boolean linksAreCurrent = storedLinkVersion == topologyVersion;
+        if (!linksAreCurrent) {
+            topologyVersion++;
+            storedLinkVersion = -1;
+        }
+        // the node heights are those stored
+        heightChangedNodeNr = -2;
     }
 
     /** Loggable interface implementation follows **/
@@ -565,8 +852,8 @@ public class Network extends StateNode {
     public void log(long sample, PrintStream out) {
         Network network = (Network) getCurrent();
         out.print("tree STATE_" + sample + " = ");
-        final String newick = network.toString();
-        out.print(newick);
+        // a writer per call, as its buffers would be shared by nested or concurrent calls
+        new NewickWriter(null, false).write(network, out);
         out.print(";");
     }
 
@@ -46,11 +46,15 @@ public class NetworkNode {
     public Integer subnetworkNr;
     public Double topologySupport;
 
-    // meta-data contained in square brackets in Newick
-    protected String metaDataString;
-
     // arbitrarily labeled metadata on this node
     protected Map<String, Object> metaData = new TreeMap<>();
+    // true if metaData may be shared with a copy of this node, it is then copied before being changed
+    private boolean metaDataIsShared = false;
+    /* cached Newick formatting of metaData, null if outdated. Values such as arrays can be changed in place,
+       so the entries are only reused if all values are immutable (formattedMetaDataIsFinal). */
+    private String[] formattedMetaDataNames = null;
+    private String[] formattedMetaData = null;
+    private boolean formattedMetaDataIsFinal = false;
 
     // the network that this node is a part of
     protected Network network;
@@ -80,7 +84,6 @@ public class NetworkNode {
     public NetworkNode(Node treeNode) {
         label = treeNode.getID();
         height = treeNode.getHeight();
-        metaDataString = treeNode.metaDataString;
         for (String key : treeNode.getMetaDataNames()) {
             Object value = treeNode.getMetaData(key);
             metaData.put(key, value);
@@ -96,23 +99,32 @@ public class NetworkNode {
     }
 
     protected static void copyNode(NetworkNode src, NetworkNode dst) {
+        copyNodeValues(src, dst);
+        // children and parents will be sorted out using updateRelationships()
+        dst.children.clear();
+        dst.parents.clear();
+    }
+
+    /* copy everything but the children and parents, which are kept if the nodes they link have the same topology */
+    static void copyNodeValues(NetworkNode src, NetworkNode dst) {
         dst.label = src.label;
         dst.height = src.height;
         dst.inheritProb = src.inheritProb;
         dst.childBranchNumbers.clear();
-        dst.childBranchNumbers.addAll(src.childBranchNumbers);
+        for (int k = 0; k < src.childBranchNumbers.size(); k++) {
+            dst.childBranchNumbers.add(src.childBranchNumbers.get(k));
+        }
         dst.gammaBranchNumber = src.gammaBranchNumber;
-        // children and parents will be sorted out using updateRelationships()
-        dst.children.clear();
-        dst.parents.clear();
         dst.nodeNumber = src.nodeNumber;
-        // also copy meta data?
-        dst.metaDataString = src.metaDataString;
-        dst.metaData.clear();
-        for (String key : src.getMetaDataNames()) {
-            Object value = src.getMetaData(key);
-            dst.metaData.put(key,value);
+        // meta data is shared and only copied when either node changes it
+        if (dst.metaData != src.metaData) {
+            dst.metaData = src.metaData;
+            src.metaDataIsShared = true;
+            dst.metaDataIsShared = true;
         }
+        dst.formattedMetaDataNames = src.formattedMetaDataNames;
+        dst.formattedMetaData = src.formattedMetaData;
+        dst.formattedMetaDataIsFinal = src.formattedMetaDataIsFinal;
         dst.isDirty = src.isDirty;
     }
 
@@ -134,6 +146,7 @@ public class NetworkNode {
 
     public void setHeight(final double height) {
         this.height = height;
+        if (network != null) network.nodeHeightChanged(nodeNumber);
         isDirty |= Network.IS_DIRTY;
         for (NetworkNode child: children) {
             child.isDirty |= Network.IS_DIRTY;
@@ -141,15 +154,23 @@ public class NetworkNode {
     }
 
     public void setMetaData(final String pattern, final Object value) {
+        if (metaDataIsShared) {
+            if (metaData.containsKey(pattern) && Objects.equals(metaData.get(pattern), value))
+                return;
+            metaData = new TreeMap<>(metaData);
+            metaDataIsShared = false;
+        }
         metaData.put(pattern, value);
+        formattedMetaDataNames = formattedMetaData = null;
     }
 
     public Object getMetaData(final String pattern) {
         return metaData.get(pattern);
     }
 
+    // the names can only be changed through setMetaData, which keeps the formatted meta data up to date
     public Set<String> getMetaDataNames() {
-        return metaData.keySet();
+        return Collections.unmodifiableSet(metaData.keySet());
     }
 
     public Multiset<NetworkNode> getParents() {
@@ -160,38 +181,46 @@ public class NetworkNode {
         return children;
     }
 
-    protected Multiset<NetworkNode> updateParents() {
-        final Multiset<NetworkNode> parents = HashMultiset.create();
-
-        for (NetworkNode node: network.nodes) {
-            for (Integer i: node.childBranchNumbers) {
-                final int childNodeNumber = network.getNodeNumber(i);
-                final NetworkNode childNode = network.nodes[childNodeNumber];
-                if (childNode == this) parents.add(node);
+    protected void updateParents() {
+        parents.clear();
+        final NetworkNode[] nodes = network.nodes;
+        final int reticulationOffset = network.getReticulationOffset();
+        // the origin has no parent branch, a reticulation node has two
+        final int parentBranchCount = nodeNumber == nodes.length - 1 ? 0 : nodeNumber >= reticulationOffset ? 2 : 1;
+        for (int b = gammaBranchNumber; b < gammaBranchNumber + parentBranchCount; b++) {
+            // look up the branch table first, and scan the nodes only if it is stale
+            final int parentNr = b < network.parentNodeOfBranch.length ? network.parentNodeOfBranch[b] : -1;
+            if (parentNr >= 0 && parentNr < nodes.length && nodes[parentNr] != null && nodes[parentNr].hasChildBranch(b)) {
+                parents.add(nodes[parentNr]);
+                continue;
+            }
+            for (NetworkNode node: nodes) {
+                if (node.hasChildBranch(b))
+                    parents.add(node);
             }
         }
-
-        return parents;
     }
 
-    protected Multiset<NetworkNode> updateChildren() {
-        final Multiset<NetworkNode> children = HashMultiset.create();
-
-        for (Integer i: childBranchNumbers) {
-            final int childNodeNumber = network.getNodeNumber(i);
-            final NetworkNode childNode = network.nodes[childNodeNumber];
-            children.add(childNode);
+    protected void updateChildren() {
+        children.clear();
+        for (int k = 0; k < childBranchNumbers.size(); k++) {
+            final int childNodeNumber = network.getNodeNumber(childBranchNumbers.get(k));
+            children.add(network.nodes[childNodeNumber]);
         }
-
-        return children;
     }
 
+    /**
+     * update the relationships of this node only, after its child branches or those of its parents were changed
+     */
     public void updateRelationships() {
-        nodeNumber = -1;
-        for (int i = 0; i < network.nodes.length; i++) {
-            if (network.nodes[i] == this) {
-                nodeNumber = i;
-                break;
+        final NetworkNode[] nodes = network.nodes;
+        if (nodeNumber < 0 || nodeNumber >= nodes.length || nodes[nodeNumber] != this) {
+            nodeNumber = -1;
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] == this) {
+                    nodeNumber = i;
+                    break;
+                }
             }
         }
         if (nodeNumber < 0) {
@@ -199,28 +228,69 @@ public class NetworkNode {
         }
 
         gammaBranchNumber = network.getBranchNumber(nodeNumber);
-        parents = updateParents();
-        children = updateChildren();
+        updateParents();
+        updateChildren();
+        final int[] parentNodeOfBranch = network.parentNodeOfBranch;
+        for (int k = 0; k < childBranchNumbers.size(); k++) {
+            final int b = childBranchNumbers.get(k);
+            if (b >= 0 && b < parentNodeOfBranch.length) parentNodeOfBranch[b] = nodeNumber;
+        }
+        network.topologyChanged();
 
         isDirty |= Network.IS_DIRTY;
     }
 
-    public NetworkNode getParentByBranch(Integer branchNr) {
+    public NetworkNode getParentByBranch(int branchNr) {
+        // look up the branch table first, it may be stale while an operator is rewiring the network
+        final int[] parentNodeOfBranch = network.parentNodeOfBranch;
+        if (branchNr >= 0 && branchNr < parentNodeOfBranch.length
+                && network.childNodeOfBranch[branchNr] == nodeNumber) {
+            final int parentNr = parentNodeOfBranch[branchNr];
+            if (parentNr >= 0 && parentNr < network.nodes.length) {
+                final NetworkNode parent = network.nodes[parentNr];
+                if (parent != null && parent.hasChildBranch(branchNr))
+                    return parent;
+            }
+        }
         for (NetworkNode parent: parents) {
-            if (parent.childBranchNumbers.contains(branchNr))
+            if (parent.hasChildBranch(branchNr))
                 return parent;
         }
         return null;
     }
 
-    public NetworkNode getChildByBranch(Integer branchNr) {
-        if (childBranchNumbers.contains(branchNr)) {
-            final int childNodeNumber = network.getNodeNumber(branchNr);
+    /**
+     * Same as above, but the branch number may be null (as the gamma branch number of the origin), then returns null.
+     */
+    public NetworkNode getParentByBranch(Integer branchNr) {
+        return branchNr == null ? null : getParentByBranch(branchNr.intValue());
+    }
+
+    public NetworkNode getChildByBranch(int branchNr) {
+        if (hasChildBranch(branchNr)) {
+            final int[] childNodeOfBranch = network.childNodeOfBranch;
+            final int childNodeNumber = branchNr < childNodeOfBranch.length ?
+                    childNodeOfBranch[branchNr] : network.getNodeNumber(branchNr);
             return network.nodes[childNodeNumber];
         }
         return null;
     }
 
+    /**
+     * Same as above, but the branch number may be null, then returns null.
+     */
+    public NetworkNode getChildByBranch(Integer branchNr) {
+        return branchNr == null ? null : getChildByBranch(branchNr.intValue());
+    }
+
+    private boolean hasChildBranch(int branchNr) {
+        for (int k = 0; k < childBranchNumbers.size(); k++) {
+            if (childBranchNumbers.get(k) == branchNr)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * @return true if current node is origin node
      */
@@ -232,7 +302,8 @@ public class NetworkNode {
      * @return true if current node is root node
      */
     public boolean isRoot() {
-        return getParentByBranch(gammaBranchNumber).isOrigin();
+        final NetworkNode parent = getParentByBranch(gammaBranchNumber);
+        return parent != null && parent.isOrigin();
     }
 
     /**
@@ -256,121 +327,54 @@ public class NetworkNode {
         return children.size() == 2;
     }
 
-    /**
-     * whether the node has been visited, say by a recursive method
-     */
-    protected boolean visited = false; // this should be used outside of this class
-
-    /* get and (re)set the visited indicator */
-    public boolean isVisited() {
-        return visited;
-    }
-
-    public void setVisited(boolean v) {
-        visited = v;
-    }
-
-    private boolean touched = false; // this is only used inside this class
-
-    private void resetAllTouched() {
-        for (NetworkNode node: network.nodes) {
-            node.touched = false;
-        }
-    }
-
     public String toString(DecimalFormat df, boolean inXML) {
-        resetAllTouched();
-        NetworkNode parent = getParentByBranch(gammaBranchNumber);
-        final double parentHeight;
-        if (parent == null) {
-            parentHeight = Double.POSITIVE_INFINITY;
-        } else {
-            parentHeight = parent.getHeight();
-        }
-        return buildNewick(parentHeight, gammaBranchNumber, df, inXML);
+        final StringBuilder newick = new StringBuilder();
+        new NewickWriter(df, inXML).write(this, newick);
+        return newick.toString();
     }
 
     public String toString() {
         return toString(null, false);
     }
 
-    private String buildNewick(double parentHeight, Integer branchNumber, DecimalFormat df, boolean inXML) {
-        final StringBuilder subStr = new StringBuilder();
-        // only add children to a reticulation node once
-        if (children.size() > 0 && !touched) {
-            touched = true;
-            subStr.append("(");
-            int i = 0;
-            for (Integer childBranchNr: childBranchNumbers) {
-                if (i > 0) subStr.append(",");
-                NetworkNode childNode = getChildByBranch(childBranchNr);
-                subStr.append(childNode.buildNewick(height, childBranchNr, df, inXML));
-                i++;
-            }
-            subStr.append(")");
-        }
-
-        if (label != null)
-            subStr.append(label);
-        // else
-        //  subtreeString.append(nodeNumber);
-
-        if (isOrigin() && topologySupport != null)
-            setMetaData("topologySupport", topologySupport);
-
-        if (isReticulation() && gammaBranchNumber.equals(branchNumber)) {
-            setMetaData("gamma", inheritProb);
-            processMetaData(true);  // write gamma prob associated with the branch
-        } else {
-            processMetaData(false); // do not write gamma prob at the other branch
-        }
-        subStr.append(getNewickMetaData(inXML));
-
-        if (parentHeight < Double.POSITIVE_INFINITY) {
-            final double branchLength = parentHeight - height;
-            subStr.append(":");
-            if (df == null) subStr.append(branchLength);
-            else subStr.append(df.format(branchLength));
-        }
-
-        return subStr.toString();
-    }
-
-    /* put meta data in metaDataString TODO: decimal format for meta data */
-    private void processMetaData(boolean withGamma) {
-        StringBuilder metaStr = new StringBuilder();
-        for (String name : getMetaDataNames()) {
-            if (!name.contains("gamma") || withGamma) {
-                Object value = getMetaData(name);
-                metaStr.append(name).append("=");
-                if (value instanceof Object[] values) {
-                    metaStr.append("{");
-                    for (int i = 0; i < values.length; i++) {
-                        if (i > 0) metaStr.append(",");
-                        metaStr.append(values[i].toString());
-                    }
-                    metaStr.append("}");
-                } else {
-                    metaStr.append(value.toString());
+    /* meta data names in sorted order, and the formatted "name=value" entries, used by NewickWriter */
+    String[] getFormattedMetaDataNames() {
+        if (formattedMetaDataNames == null) formatMetaData();
+        return formattedMetaDataNames;
+    }
+
+    String[] getFormattedMetaData() {
+        if (formattedMetaData == null || !formattedMetaDataIsFinal) formatMetaData();
+        return formattedMetaData;
+    }
+
+    /* TODO: decimal format for meta data */
+    private void formatMetaData() {
+        final String[] names = new String[metaData.size()];
+        final String[] entries = new String[metaData.size()];
+        boolean isFinal = true;
+        int k = 0;
+        for (Map.Entry<String, Object> entry : metaData.entrySet()) {
+            final StringBuilder metaStr = new StringBuilder();
+            final Object value = entry.getValue();
+            metaStr.append(entry.getKey()).append("=");
+            if (value instanceof Object[] values) {
+                metaStr.append("{");
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) metaStr.append(",");
+                    metaStr.append(values[i].toString());
                 }
-                metaStr.append(",");
+                metaStr.append("}");
+            } else {
+                metaStr.append(value.toString());
             }
+            isFinal &= value instanceof String || value instanceof Number || value instanceof Boolean;
+            names[k] = entry.getKey();
+            entries[k++] = metaStr.toString();
         }
-        if (metaStr.length() > 0)
-            metaDataString = metaStr.substring(0, metaStr.length() - 1);
-        else
-            metaDataString = "";
-    }
-
-    private String getNewickMetaData(boolean inXML) {
-        if (metaDataString != null && metaDataString.length() > 0) {
-            if (inXML)
-                return "[&amp;" + metaDataString + ']';
-            else
-                return "[&" + metaDataString + ']';
-        } else {
-            return "";
-        }
+        formattedMetaDataNames = names;
+        formattedMetaData = entries;
+        formattedMetaDataIsFinal = isFinal;
     }
 
     public double getGammaProb() {
@@ -394,75 +398,77 @@ public class NetworkNode {
         return nodeNumber - network.leafNodeCount;
     }
 
+    /* traversals of the sub-network mark the visited nodes in their own bit set,
+       so that concurrent read-only traversals of the same network do not interfere */
+    private BitSet newVisitedSet() {
+        return new BitSet(network.nodes.length);
+    }
+
     /**
      * @return total node count in sub-network defined by this node (including this node itself)
      */
     public int getNodeCount() {
-        resetAllTouched();
-        return recurseNodeCount();
+        return recurseNodeCount(newVisitedSet());
     }
-    private int recurseNodeCount() {
-        if (touched) return 0;
+    private int recurseNodeCount(BitSet visited) {
+        if (visited.get(nodeNumber)) return 0;
+        visited.set(nodeNumber);
 
         int nodeCount = 1;
         for (NetworkNode child: children) {
-            nodeCount += child.recurseNodeCount();
+            nodeCount += child.recurseNodeCount(visited);
         }
 
-        touched = true;
         return nodeCount;
     }
 
     public int getLeafNodeCount() {
-        resetAllTouched();
-        return recurseLeafNodeCount();
+        return recurseLeafNodeCount(newVisitedSet());
     }
-    private int recurseLeafNodeCount() {
-        if (touched)
+    private int recurseLeafNodeCount(BitSet visited) {
+        if (visited.get(nodeNumber))
             return 0;
         else if (children.size() == 0)
             return 1;
+        visited.set(nodeNumber);
 
         int nodeCount = 0;
         for (NetworkNode child: children) {
-            nodeCount += child.recurseLeafNodeCount();
+            nodeCount += child.recurseLeafNodeCount(visited);
         }
 
-        touched = true;
         return nodeCount;
     }
 
     public int getSpeciationNodeCount() {
-        resetAllTouched();
-        return recurseSpeciationNodeCount();
+        return recurseSpeciationNodeCount(newVisitedSet());
     }
-    private int recurseSpeciationNodeCount() {
-        if (touched) return 0;
+    private int recurseSpeciationNodeCount(BitSet visited) {
+        if (visited.get(nodeNumber)) return 0;
+        visited.set(nodeNumber);
 
         // only count speciation nodes
         int nodeCount = (children.size() == 2) ? 1 : 0;
         for (NetworkNode child: children) {
-            nodeCount += child.recurseSpeciationNodeCount();
+            nodeCount += child.recurseSpeciationNodeCount(visited);
         }
 
-        touched = true;
         return nodeCount;
     }
 
     public int getReticulationNodeCount() {
-        resetAllTouched();
-        return recurseReticulationNodeCount();
+        return recurseReticulationNodeCount(newVisitedSet());
     }
-    private int recurseReticulationNodeCount() {
-        if (touched) return 0;
+    private int recurseReticulationNodeCount(BitSet visited) {
+        if (visited.get(nodeNumber)) return 0;
+        visited.set(nodeNumber);
 
         // only count reticulation nodes
         int nodeCount = (parents.size() == 2) ? 1 : 0;
         for (NetworkNode child: children) {
-            nodeCount += child.recurseReticulationNodeCount();
+            nodeCount += child.recurseReticulationNodeCount(visited);
         }
 
-        touched = true;
         return nodeCount;
     }
 
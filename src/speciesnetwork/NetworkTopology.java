@@ -0,0 +1,225 @@
+package speciesnetwork;
+
+import java.util.Arrays;
+
+/**
+ * Structures derived from the topology of a species network, which do not depend on the node heights or the
+ * inheritance probabilities. The topology includes the node numbering, as the structures are indexed by node number.
+ * Among them are the reachability of the nodes and branches from each other, which can be queried in constant time.
+ * They are immutable, so that Network can keep them for the topologies visited recently (see Network.getTopology())
+ * and share them between the likelihood and the operators. The arrays returned must not be changed.
+ */
+public final class NetworkTopology {
+    private final int leafNodeCount;
+    private final int speciationNodeCount;
+    private final int reticulationNodeCount;
+    private final long numberingHash;
+
+    // node numbers at the two ends of each branch, indexed by branch number (the origin branch has no parent, -1)
+    private final int[] parentNodeOfBranch;
+    private final int[] childNodeOfBranch;
+
+    /* reachability: the descendants and the ancestors of each node (each including the node itself), stored as
+       bit masks of node numbers (nodeWords words per node, indexed by node number) */
+    private final int nodeWords;
+    private final long[] nodeDescendants;
+    private final long[] nodeAncestors;
+
+    /* heirs are the species network leaves below each node, stored as bit masks of species leaf numbers
+       (maskWords words per node, indexed by node number). As the leaves are numbered first,
+       these are the first words of the descendants. */
+    private final int maskWords;
+    private final long[] nodeHeirs;
+
+    NetworkTopology(int leafNodeCount, int speciationNodeCount, int reticulationNodeCount,
+                    int[] parentNodeOfBranch, long numberingHash) {
+        this.leafNodeCount = leafNodeCount;
+        this.speciationNodeCount = speciationNodeCount;
+        this.reticulationNodeCount = reticulationNodeCount;
+        this.parentNodeOfBranch = parentNodeOfBranch;
+        this.numberingHash = numberingHash;
+
+        final int nodeCount = getNodeCount();
+        final int reticulationOffset = leafNodeCount + speciationNodeCount;
+        childNodeOfBranch = new int[parentNodeOfBranch.length];
+        for (int b = 0; b < childNodeOfBranch.length; b++)
+            childNodeOfBranch[b] = b < reticulationOffset ? b : (b - reticulationOffset) / 2 + reticulationOffset;
+
+        // the descendants of a node are complete once those of all its children have been added, starting from the leaves
+        nodeWords = (nodeCount + 63) >>> 6;
+        nodeDescendants = new long[nodeCount * nodeWords];
+        final int[] pendingChildCounts = new int[nodeCount];
+        for (int parentNr : parentNodeOfBranch) {
+            if (parentNr >= 0) pendingChildCounts[parentNr]++;
+        }
+        final int[] completedNodes = new int[nodeCount];
+        int completedCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            nodeDescendants[i * nodeWords + (i >>> 6)] |= 1L << i;
+            if (pendingChildCounts[i] == 0)
+                completedNodes[completedCount++] = i;
+        }
+        for (int k = 0; k < completedCount; k++) {
+            final int nodeNr = completedNodes[k];
+            final int branchNr = getBranchNumber(nodeNr);
+            final int parentBranchCount = isReticulation(nodeNr) ? 2 : 1;
+            for (int b = branchNr; b < branchNr + parentBranchCount; b++) {
+                final int parentNr = parentNodeOfBranch[b];
+                if (parentNr < 0) continue;
+                for (int w = 0; w < nodeWords; w++)
+                    nodeDescendants[parentNr * nodeWords + w] |= nodeDescendants[nodeNr * nodeWords + w];
+                if (--pendingChildCounts[parentNr] == 0)
+                    completedNodes[completedCount++] = parentNr;
+            }
+        }
+
+        // the ancestors of a node are complete once those of all its parents have been added, in the reverse order
+        nodeAncestors = new long[nodeCount * nodeWords];
+        for (int k = completedCount - 1; k >= 0; k--) {
+            final int nodeNr = completedNodes[k];
+            nodeAncestors[nodeNr * nodeWords + (nodeNr >>> 6)] |= 1L << nodeNr;
+            final int branchNr = getBranchNumber(nodeNr);
+            final int parentBranchCount = isReticulation(nodeNr) ? 2 : 1;
+            for (int b = branchNr; b < branchNr + parentBranchCount; b++) {
+                final int parentNr = parentNodeOfBranch[b];
+                if (parentNr < 0) continue;
+                for (int w = 0; w < nodeWords; w++)
+                    nodeAncestors[nodeNr * nodeWords + w] |= nodeAncestors[parentNr * nodeWords + w];
+            }
+        }
+
+        maskWords = (leafNodeCount + 63) >>> 6;
+        nodeHeirs = new long[nodeCount * maskWords];
+        final long lastWordMask = (leafNodeCount & 63) == 0 ? -1L : (1L << leafNodeCount) - 1;
+        for (int i = 0; i < nodeCount; i++) {
+            for (int w = 0; w < maskWords; w++)
+                nodeHeirs[i * maskWords + w] = nodeDescendants[i * nodeWords + w] & (w == maskWords - 1 ? lastWordMask : -1L);
+        }
+    }
+
+    /**
+     * @return a hash of the topology with its node numbering, the same for the same numbered topology however it is
+     *         reached, but not a canonical hash of the topology (renumbering the nodes changes it)
+     */
+    static long numberingHashOf(int leafNodeCount, int speciationNodeCount, int reticulationNodeCount, int[] parentNodeOfBranch) {
+        long h = leafNodeCount;
+        h = h * 0x9E3779B97F4A7C15L + speciationNodeCount;
+        h = h * 0x9E3779B97F4A7C15L + reticulationNodeCount;
+        for (int parentNr : parentNodeOfBranch) {
+            h = (h ^ parentNr) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    /**
+     * @return true if this is the topology given by the node counts and the parent node numbers of the branches
+     */
+    boolean matches(int leafNodeCount, int speciationNodeCount, int reticulationNodeCount, int[] parentNodeOfBranch) {
+        return this.leafNodeCount == leafNodeCount && this.speciationNodeCount == speciationNodeCount &&
+                this.reticulationNodeCount == reticulationNodeCount &&
+                Arrays.equals(this.parentNodeOfBranch, parentNodeOfBranch);
+    }
+
+    public long getNumberingHash() {
+        return numberingHash;
+    }
+
+    public int getNodeCount() {
+        return leafNodeCount + speciationNodeCount + reticulationNodeCount + 1;
+    }
+
+    public int getBranchCount() {
+        return reticulationNodeCount + getNodeCount() - 1;
+    }
+
+    private boolean isReticulation(int nodeNr) {
+        return nodeNr >= leafNodeCount + speciationNodeCount && nodeNr < getNodeCount() - 1;
+    }
+
+    private int getBranchNumber(int nodeNr) {
+        final int reticulationOffset = leafNodeCount + speciationNodeCount;
+        return nodeNr < reticulationOffset ? nodeNr : nodeNr * 2 - reticulationOffset;
+    }
+
+    /**
+     * @return the parent node number of each branch, indexed by branch number (including the origin branch)
+     */
+    public int[] getParentNodeOfBranch() {
+        return parentNodeOfBranch;
+    }
+
+    /**
+     * @return the child node number of each branch, indexed by branch number (including the origin branch)
+     */
+    public int[] getChildNodeOfBranch() {
+        return childNodeOfBranch;
+    }
+
+    /**
+     * @return true if node "nodeNr" is node "ancestorNr" or can be reached from it forward in time
+     */
+    public boolean isDescendant(int nodeNr, int ancestorNr) {
+        return (nodeDescendants[ancestorNr * nodeWords + (nodeNr >>> 6)] & (1L << nodeNr)) != 0L;
+    }
+
+    /**
+     * @return true if node "nodeNr" is node "descendantNr" or can be reached from it backward in time
+     */
+    public boolean isAncestor(int nodeNr, int descendantNr) {
+        return (nodeAncestors[descendantNr * nodeWords + (nodeNr >>> 6)] & (1L << nodeNr)) != 0L;
+    }
+
+    /**
+     * @return true if node "nodeNr" is the child node of branch "branchNr" or can be reached from it forward in time
+     */
+    public boolean isDescendantOfBranch(int nodeNr, int branchNr) {
+        return isDescendant(nodeNr, childNodeOfBranch[branchNr]);
+    }
+
+    /**
+     * @return true if branch "branchNr" is below node "nodeNr", i.e. its parent node is a descendant of the node
+     */
+    public boolean isBranchDescendant(int branchNr, int nodeNr) {
+        final int parentNr = parentNodeOfBranch[branchNr];
+        return parentNr >= 0 && isDescendant(parentNr, nodeNr);
+    }
+
+    /**
+     * @return the number of 64-bit words of each bit mask of nodes
+     */
+    public int getNodeWords() {
+        return nodeWords;
+    }
+
+    /**
+     * @return the descendants of each node (including itself), as bit masks of node numbers
+     * of getNodeWords() words per node, indexed by node number
+     */
+    public long[] getNodeDescendants() {
+        return nodeDescendants;
+    }
+
+    /**
+     * @return the ancestors of each node (including itself), as bit masks of node numbers
+     * of getNodeWords() words per node, indexed by node number
+     */
+    public long[] getNodeAncestors() {
+        return nodeAncestors;
+    }
+
+    /**
+     * @return the number of 64-bit words of each bit mask of species leaves
+     */
+    public int getMaskWords() {
+        return maskWords;
+    }
+
+    /**
+     * @return the species leaves below each node (including a leaf itself), as bit masks of leaf node numbers
+     * of getMaskWords() words per node, indexed by node number
+     */
+    public long[] getNodeHeirs() {
+        return nodeHeirs;
+    }
+}
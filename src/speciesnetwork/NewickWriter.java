@@ -0,0 +1,127 @@
+package speciesnetwork;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.BitSet;
+
+/**
+ * Write a network in extended Newick format directly into an Appendable, in a single pass.
+ * The nodes are left unchanged: gamma and topology support are written as meta data
+ * without being stored in the meta data of the nodes.
+ * A writer reuses its buffers, so it should not be shared between threads.
+ */
+public final class NewickWriter {
+    private final DecimalFormat df;
+    private final boolean inXML;
+
+    private final StringBuffer numberBuffer = new StringBuffer();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    // reticulation nodes whose children have been written already
+    private final BitSet touched = new BitSet();
+
+    /**
+     * @param df    format of the branch lengths, null for full precision
+     * @param inXML whether the meta data should be escaped for XML
+     */
+    public NewickWriter(DecimalFormat df, boolean inXML) {
+        this.df = df;
+        this.inXML = inXML;
+    }
+
+    public void write(Network network, Appendable out) {
+        write(network.getOrigin(), out);
+    }
+
+    public void write(NetworkNode node, Appendable out) {
+        touched.clear();
+        final NetworkNode parent = node.getParentByBranch(node.gammaBranchNumber);
+        final double parentHeight = parent == null ? Double.POSITIVE_INFINITY : parent.getHeight();
+        try {
+            writeNode(node, parentHeight, node.gammaBranchNumber, out);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the network!", e);
+        }
+    }
+
+    private void writeNode(NetworkNode node, double parentHeight, int branchNumber, Appendable out) throws IOException {
+        // only add children to a reticulation node once
+        final int nodeNr = node.getNr();
+        if (node.childBranchNumbers.size() > 0 && !touched.get(nodeNr)) {
+            touched.set(nodeNr);
+            out.append('(');
+            for (int i = 0; i < node.childBranchNumbers.size(); i++) {
+                if (i > 0) out.append(',');
+                final int childBranchNr = node.childBranchNumbers.get(i);
+                writeNode(node.getChildByBranch(childBranchNr), node.height, childBranchNr, out);
+            }
+            out.append(')');
+        }
+
+        if (node.label != null)
+            out.append(node.label);
+
+        writeMetaData(node, branchNumber, out);
+
+        if (parentHeight < Double.POSITIVE_INFINITY) {
+            out.append(':');
+            writeNumber(parentHeight - node.height, df, out);
+        }
+    }
+
+    /* the gamma prob is only written at the gamma branch of a reticulation node, and
+       the topology support at the origin; both take the place of a stored value of the same name */
+    private void writeMetaData(NetworkNode node, int branchNumber, Appendable out) throws IOException {
+        final boolean withGamma = node.isReticulation() && node.gammaBranchNumber == branchNumber;
+        final boolean withSupport = node.isOrigin() && node.topologySupport != null;
+
+        final String[] names = node.getFormattedMetaDataNames();
+        final String[] entries = node.getFormattedMetaData();
+        boolean gammaWritten = !withGamma, supportWritten = !withSupport;
+        int nWritten = 0;
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            if (!gammaWritten && GAMMA.compareTo(name) <= 0) {
+                nWritten = writeEntry(GAMMA, node.inheritProb, nWritten, out);
+                gammaWritten = true;
+                if (GAMMA.equals(name)) continue;
+            }
+            if (!supportWritten && TOPOLOGY_SUPPORT.compareTo(name) <= 0) {
+                nWritten = writeEntry(TOPOLOGY_SUPPORT, node.topologySupport, nWritten, out);
+                supportWritten = true;
+                if (TOPOLOGY_SUPPORT.equals(name)) continue;
+            }
+            if (!withGamma && name.contains(GAMMA)) continue;
+            out.append(nWritten == 0 ? openMetaData() : ",").append(entries[i]);
+            nWritten++;
+        }
+        if (!gammaWritten)
+            nWritten = writeEntry(GAMMA, node.inheritProb, nWritten, out);
+        if (!supportWritten)
+            nWritten = writeEntry(TOPOLOGY_SUPPORT, node.topologySupport, nWritten, out);
+        if (nWritten > 0)
+            out.append(']');
+    }
+
+    private int writeEntry(String name, double value, int nWritten, Appendable out) throws IOException {
+        out.append(nWritten == 0 ? openMetaData() : ",").append(name).append('=');
+        writeNumber(value, null, out);
+        return nWritten + 1;
+    }
+
+    private String openMetaData() {
+        return inXML ? "[&amp;" : "[&";
+    }
+
+    private void writeNumber(double value, DecimalFormat format, Appendable out) throws IOException {
+        numberBuffer.setLength(0);
+        if (format == null)
+            numberBuffer.append(value);
+        else
+            format.format(value, numberBuffer, fieldPosition);
+        out.append(numberBuffer);
+    }
+
+    private static final String GAMMA = "gamma";
+    private static final String TOPOLOGY_SUPPORT = "topologySupport";
+}
@@ -1,6 +1,8 @@
 package speciesnetwork;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import beast.base.inference.CalculationNode;
@@ -13,9 +15,128 @@ import beast.base.core.Description;
 
 @Description("Calculates probability of coalescent events within a branch based on a demographic function.")
 public abstract class PopulationSizeModel extends CalculationNode {
+    // log probability of coalescent events in each species branch
+    private double[] branchLogPs = new double[0];
+    private double[] storedBranchLogPs = new double[0];
+    // species branches whose sufficient statistics changed since the last calculation
+    private boolean[] dirtyBranches = new boolean[0];
+    private boolean[] storedDirtyBranches = new boolean[0];
+
     abstract public double branchLogP(int speciesNetworkPopNumber, double[] perGenePloidy,
                                       List<Double[]> branchCoalescentTimes, int[] branchLineageCounts, int[] branchEventCounts);
 
+    /**
+     * Same as above, but without boxing. The coalescent times of gene j are geneCoalescentTimes[j][timeOffsets[j]] ...
+     * geneCoalescentTimes[j][timeOffsets[j] + branchEventCounts[j] - 1], in ascending order, and do not include
+     * the branch start and end times. Override this to avoid the conversion to the boxed arguments.
+     */
+    public double branchLogP(int speciesNetworkPopNumber, double[] perGenePloidy, double branchTopHeight, double branchBottomHeight,
+                             double[][] geneCoalescentTimes, int[] timeOffsets, int[] branchLineageCounts, int[] branchEventCounts) {
+        final int nGenes = perGenePloidy.length;
+
+        if (usesSufficientStatistics()) {
+            int branchQ = 0;
+            double branchLogR = 0.0;
+            double branchGamma = 0.0;
+            for (int j = 0; j < nGenes; j++) {
+                final int geneK = branchEventCounts[j];
+                branchLogR -= geneK * Math.log(perGenePloidy[j]);
+                branchQ += geneK;
+                branchGamma += lineagePairTime(branchLineageCounts[j], branchTopHeight, branchBottomHeight,
+                                               geneCoalescentTimes[j], timeOffsets[j], geneK) / perGenePloidy[j];
+            }
+            return branchLogP(speciesNetworkPopNumber, branchQ, branchGamma, branchLogR);
+        }
+
+        final List<Double[]> boxedCoalescentTimes = new ArrayList<>(nGenes);
+        for (int j = 0; j < nGenes; j++) {
+            final int geneK = branchEventCounts[j];
+            final Double[] geneTimes = new Double[geneK + 2];
+            geneTimes[0] = branchBottomHeight;
+            for (int i = 0; i < geneK; i++) {
+                geneTimes[i + 1] = geneCoalescentTimes[j][timeOffsets[j] + i];
+            }
+            geneTimes[geneK + 1] = branchTopHeight;
+            boxedCoalescentTimes.add(geneTimes);
+        }
+
+        return branchLogP(speciesNetworkPopNumber, perGenePloidy, boxedCoalescentTimes, branchLineageCounts, branchEventCounts);
+    }
+
+    /**
+     * Models which only depend on the sufficient statistics of a branch should return true, so that the statistics
+     * are accumulated while traversing the gene trees, and the coalescent times are never passed around.
+     */
+    public boolean usesSufficientStatistics() {
+        return false;
+    }
+
+    /**
+     * The boxed branchLogP of models which use sufficient statistics: sums the statistics over genes
+     * and passes them to the branchLogP below.
+     */
+    protected double sufficientBranchLogP(int speciesNetworkPopNumber, double[] perGenePloidy,
+                                          List<Double[]> branchCoalescentTimes, int[] branchLineageCounts, int[] branchEventCounts) {
+        int branchQ = 0;
+        double branchLogR = 0.0;
+        double branchGamma = 0.0;
+        for (int j = 0; j < perGenePloidy.length; j++) {
+            final int geneK = branchEventCounts[j];
+            branchLogR -= geneK * Math.log(perGenePloidy[j]);
+            branchQ += geneK;
+            branchGamma += lineagePairTime(branchLineageCounts[j], branchCoalescentTimes.get(j), geneK) / perGenePloidy[j];
+        }
+        return branchLogP(speciesNetworkPopNumber, branchQ, branchGamma, branchLogR);
+    }
+
+    /**
+     * @param branchQ     total number of coalescent events in the branch
+     * @param branchGamma sum over genes of (interval length * number of lineage pairs) / ploidy
+     * @param branchLogR  sum over coalescent events of -log(ploidy)
+     * @return the log probability of the coalescent events in the branch
+     */
+    public double branchLogP(int speciesNetworkPopNumber, int branchQ, double branchGamma, double branchLogR) {
+        throw new RuntimeException(getClass().getSimpleName() + " does not support sufficient statistics!");
+    }
+
+    /**
+     * @return the sum of (interval length * number of lineage pairs) over the coalescent intervals of one gene in a branch,
+     *         where the eventCount coalescent times start at coalescentTimes[from] and are in ascending order
+     *         (the branch start and end times are given separately)
+     */
+    public static double lineagePairTime(int lineageCount, double branchTopHeight, double branchBottomHeight,
+                                         double[] coalescentTimes, int from, int eventCount) {
+        double pairTime = 0.0;
+        double lastTime = branchBottomHeight;
+        for (int i = 0; i < eventCount; i++) {
+            final double time = coalescentTimes[from + i];
+            pairTime += (time - lastTime) * (lineageCount - i) * (lineageCount - i - 1.0) / 2.0;
+            lastTime = time;
+        }
+        if (lineageCount - eventCount > 1) {
+            pairTime += (branchTopHeight - lastTime) * (lineageCount - eventCount) * (lineageCount - eventCount - 1.0) / 2.0;
+        }
+        return pairTime;
+    }
+
+    /**
+     * Same as above, for the boxed coalescent times of one gene, where the first and last times
+     * are the branch start and end times.
+     */
+    public static double lineagePairTime(int lineageCount, Double[] geneCoalescentTimes, int eventCount) {
+        double pairTime = 0.0;
+        double lastTime = geneCoalescentTimes[0];
+        for (int i = 0; i < eventCount; i++) {
+            final double time = geneCoalescentTimes[i + 1];
+            pairTime += (time - lastTime) * (lineageCount - i) * (lineageCount - i - 1.0) / 2.0;
+            lastTime = time;
+        }
+        if (lineageCount - eventCount > 1) {
+            pairTime += (geneCoalescentTimes[eventCount + 1] - lastTime) * (lineageCount - eventCount) * (lineageCount - eventCount - 1.0) / 2.0;
+        }
+        return pairTime;
+    }
+
     // Sets the appropriate dimension size of each population size state node
     // To successfully resume from a saved state, this must be called via an initAndValidate method
     abstract public void initPopSizes(final int nPopulation);
@@ -27,4 +148,79 @@ public abstract class PopulationSizeModel extends CalculationNode {
     // Per-branch population size information which will be added to a Newick string.
     // If no information is available, do not override the superclass method
     abstract public void serialize(NetworkNode speciesNetworkNode, StringBuilder buf, DecimalFormat df);
+
+    // Whether the model parameters used by a species branch have changed since the last calculation
+    // Override this if only some branches depend on a changed parameter
+    protected boolean branchParametersChanged(final int speciesBranchNumber) {
+        return isDirtyCalculation();
+    }
+
+    /**
+     * Resize the per-branch cache if the number of species branches has changed.
+     * @return true if the cache was reset, in which case every branch needs to be recalculated
+     */
+    public boolean initBranchCache(final int branchCount) {
+        if (branchLogPs.length == branchCount)
+            return false;
+
+        branchLogPs = new double[branchCount];
+        dirtyBranches = new boolean[branchCount];
+        Arrays.fill(dirtyBranches, true);
+        return true;
+    }
+
+    // Mark a species branch whose coalescent times or lineage counts have changed
+    public void setBranchDirty(final int speciesBranchNumber) {
+        dirtyBranches[speciesBranchNumber] = true;
+    }
+
+    public void setAllBranchesDirty() {
+        Arrays.fill(dirtyBranches, true);
+    }
+
+    // Whether the cached log probability of a species branch is out of date
+    public boolean branchRequiresRecalculation(final int speciesBranchNumber) {
+        return dirtyBranches[speciesBranchNumber] || branchParametersChanged(speciesBranchNumber);
+    }
+
+    public double getBranchLogP(final int speciesBranchNumber) {
+        return branchLogPs[speciesBranchNumber];
+    }
+
+    public void setBranchLogP(final int speciesBranchNumber, final double logP) {
+        branchLogPs[speciesBranchNumber] = logP;
+        dirtyBranches[speciesBranchNumber] = false;
+    }
+
+    /* The cache is copied rather than swapped, so storing or restoring more than once in the same step
+       (by the state and by the multispecies coalescent which owns the statistics) is harmless. */
+    public void storeBranchLogPs() {
+        if (storedBranchLogPs.length != branchLogPs.length) {
+            storedBranchLogPs = new double[branchLogPs.length];
+            storedDirtyBranches = new boolean[dirtyBranches.length];
+        }
+        System.arraycopy(branchLogPs, 0, storedBranchLogPs, 0, branchLogPs.length);
+        System.arraycopy(dirtyBranches, 0, storedDirtyBranches, 0, dirtyBranches.length);
+    }
+
+    public void restoreBranchLogPs() {
+        if (branchLogPs.length != storedBranchLogPs.length) {
+            branchLogPs = new double[storedBranchLogPs.length];
+            dirtyBranches = new boolean[storedDirtyBranches.length];
+        }
+        System.arraycopy(storedBranchLogPs, 0, branchLogPs, 0, branchLogPs.length);
+        System.arraycopy(storedDirtyBranches, 0, dirtyBranches, 0, dirtyBranches.length);
+    }
+
+    @Override
+    protected void store() {
+        storeBranchLogPs();
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        restoreBranchLogPs();
+        super.restore();
+    }
 }
@@ -1,5 +1,6 @@
 package speciesnetwork;
 
+import java.util.BitSet;
 import java.util.List;
 
 import com.google.common.collect.Multiset;
@@ -8,7 +9,20 @@ import beast.base.evolution.tree.Node;
 import speciesnetwork.NetworkNode;
 
 public final class SanityChecks {
+    // the checks only consist of assertions, so skip the traversals when assertions are disabled
+    private static final boolean ASSERTIONS_ENABLED;
+    static {
+        boolean enabled = false;
+        assert enabled = true;
+        ASSERTIONS_ENABLED = enabled;
+    }
+    // with assertions enabled, the checks can still be switched off with -Dspeciesnetwork.sanityChecks=false
+    private static final boolean CHECKS_ENABLED = ASSERTIONS_ENABLED &&
+            !"false".equalsIgnoreCase(System.getProperty("speciesnetwork.sanityChecks"));
+
     public static void checkTreeSanity(Node node) {
+        if (!CHECKS_ENABLED) return;
+
         final List<Node> children = node.getChildren();
         final int nChildren = children.size();
 
@@ -28,6 +42,19 @@ public final class SanityChecks {
     }
 
     public static void checkNetworkSanity(NetworkNode node) {
+        if (!CHECKS_ENABLED) return;
+
+        // visit every node once, rather than every path through the reticulations
+        checkNetworkSanity(node, new BitSet(node.getNetwork().getNodeCount()));
+    }
+
+    private static void checkNetworkSanity(NetworkNode node, BitSet visited) {
+        final int nodeNr = node.getNr();
+        if (nodeNr >= 0) {
+            if (visited.get(nodeNr)) return;
+            visited.set(nodeNr);
+        }
+
         final Multiset<NetworkNode> children = node.getChildren();
         final Multiset<NetworkNode> parents = node.getParents();
 
@@ -48,7 +75,7 @@ public final class SanityChecks {
         for (NetworkNode child: children) {
             assert child.getParents().contains(node);
             assert child.getHeight() <= node.getHeight();
-            checkNetworkSanity(child);
+            checkNetworkSanity(child, visited);
         }
     }
 }
@@ -9,8 +9,6 @@ import beast.base.inference.StateNode;
 import beast.base.inference.StateNodeInitialiser;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.core.Log;
-import beast.base.evolution.alignment.Taxon;
-import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import speciesnetwork.operators.RebuildEmbedding;
@@ -91,35 +89,15 @@ public class SpeciesNetworkInitializer extends Tree implements StateNodeInitiali
         sNetwork.scale(tOrigin/sNetwork.getOrigin().getHeight());
 
         if (coalSimulatorInput.get() == null) {
-            // map of species network tip names to species network tip nodes
-            final Map<String, NetworkNode> speciesTipMap = new HashMap<>();
-            for (NetworkNode speciesNode: sNetwork.getLeafNodes()) {
-                final String speciesName = speciesNode.getLabel();
-                speciesTipMap.put(speciesName, speciesNode);
-            }
-
-            // map of gene tip names to species network tip nodes
-            final Map<String, NetworkNode> geneTipMap = new HashMap<>();
-            final TaxonSet taxonSuperSet = sNetwork.taxonSetInput.get();
-            for (Taxon species: taxonSuperSet.taxonsetInput.get()) {
-                final String speciesName = species.getID();
-                final NetworkNode speciesNode = speciesTipMap.get(speciesName);
-                final TaxonSet speciesTaxonSet = (TaxonSet) species;
-                for (Taxon geneTip: speciesTaxonSet.taxonsetInput.get()) {
-                    final String gTipName = geneTip.getID();
-                    geneTipMap.put(gTipName, speciesNode);
-                }
-            }
-
             final double rootHeight = sNetwork.getRoot().getHeight();
             for (final EmbeddedTree gtree : geneTreesInput.get()) {
                 // initialize caterpillar gene tree
                 gtree.makeCaterpillar(rootHeight, rootHeight / gtree.getInternalNodeCount(), true);
 
                 // adjust the heights of gene tree tips to be equal to the height of corresponding species tip
+                final int[] speciesLeafNumbers = gtree.getSpeciesLeafNumbers(sNetwork);
                 for (Node geneLeaf: gtree.getExternalNodes()) {
-                    final String gLeafName = geneLeaf.getID();
-                    final NetworkNode speciesLeaf = geneTipMap.get(gLeafName);
+                    final NetworkNode speciesLeaf = sNetwork.getNode(speciesLeafNumbers[geneLeaf.getNr()]);
                     geneLeaf.setHeight(speciesLeaf.getHeight());
                 }
             }
@@ -107,6 +107,7 @@ public class CoordinatedNodeSlider extends Operator {
      */
     protected double updateRubberBand(NetworkNode networkNode, final double oldHeight, final double newHeight,
                                       final double lower, final double upper) {
+        final Network speciesNetwork = speciesNetworkInput.get();
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
 
         int m = 0;  // # gene node heights changed relative to 'upper'
@@ -117,19 +118,23 @@ public class CoordinatedNodeSlider extends Operator {
             for (EmbeddedTree geneTree : geneTrees) {
                 Embedding embedding = geneTree.embedding;
                 geneTree.startEditing(this);  // *all* gene trees will be edited
+                geneTree.updateTraversalArrays();
+                final int[] firstLeafNumbers = geneTree.getFirstLeafNumbers();
+                final int[] speciesLeafNumbers = geneTree.getSpeciesLeafNumbers(speciesNetwork);
                 // update the gene tree node heights
                 for (Node gNode : geneTree.getInternalNodes()) {
                     final double gNodeHeight = gNode.getHeight();
+                    final int speciesLeafNr = speciesLeafNumbers[firstLeafNumbers[gNode.getNr()]];
                     if (oldHeight <= gNodeHeight && gNodeHeight < upper) {
                         if (networkNode.isRoot() ||
-                            isWithinChildBranch(parentNode, Collections.singletonList(speciesBrNr), gNode, embedding, upper)) {
+                            isWithinChildBranch(parentNode, Collections.singletonList(speciesBrNr), gNode, speciesLeafNr, embedding, upper)) {
                             // update the node height relative to 'upper'
                             final double gNewNodeHeight = upper - (upper - gNodeHeight) * (upper - newHeight) / (upper - oldHeight);
                             gNode.setHeight(gNewNodeHeight);
                             m++;
                         }
                     } else if (lower < gNodeHeight && gNodeHeight < oldHeight) {
-                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, embedding, oldHeight)) {
+                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, speciesLeafNr, embedding, oldHeight)) {
                             // update the node height relative to 'lower'
                             final double gNewNodeHeight = lower + (gNodeHeight - lower) * (newHeight - lower) / (oldHeight - lower);
                             gNode.setHeight(gNewNodeHeight);
@@ -147,19 +152,23 @@ public class CoordinatedNodeSlider extends Operator {
             for (EmbeddedTree geneTree : geneTrees) {
                 Embedding embedding = geneTree.embedding;
                 geneTree.startEditing(this);  // *all* gene trees will be edited
+                geneTree.updateTraversalArrays();
+                final int[] firstLeafNumbers = geneTree.getFirstLeafNumbers();
+                final int[] speciesLeafNumbers = geneTree.getSpeciesLeafNumbers(speciesNetwork);
                 // update the gene tree node heights
                 for (Node gNode : geneTree.getInternalNodes()) {
                     final double gNodeHeight = gNode.getHeight();
+                    final int speciesLeafNr = speciesLeafNumbers[firstLeafNumbers[gNode.getNr()]];
                     if (oldHeight <= gNodeHeight && gNodeHeight < upper) {
-                        if (isWithinChildBranch(parentLNode, Collections.singletonList(snLeftBrNr),  gNode, embedding, parentLNode.getHeight()) ||
-                            isWithinChildBranch(parentRNode, Collections.singletonList(snRightBrNr), gNode, embedding, parentRNode.getHeight())) {
+                        if (isWithinChildBranch(parentLNode, Collections.singletonList(snLeftBrNr),  gNode, speciesLeafNr, embedding, parentLNode.getHeight()) ||
+                            isWithinChildBranch(parentRNode, Collections.singletonList(snRightBrNr), gNode, speciesLeafNr, embedding, parentRNode.getHeight())) {
                             // update the node height relative to 'upper'
                             final double gNewNodeHeight = upper - (upper - gNodeHeight) * (upper - newHeight) / (upper - oldHeight);
                             gNode.setHeight(gNewNodeHeight);
                             m++;
                         }
                     } else if (lower < gNodeHeight && gNodeHeight < oldHeight) {
-                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, embedding, oldHeight)) {
+                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, speciesLeafNr, embedding, oldHeight)) {
                             // update the node height relative to 'lower'
                             final double gNewNodeHeight = lower + (gNodeHeight - lower) * (newHeight - lower) / (oldHeight - lower);
                             gNode.setHeight(gNewNodeHeight);
@@ -174,9 +183,14 @@ public class CoordinatedNodeSlider extends Operator {
                n * Math.log((newHeight - lower)/(oldHeight - lower));
     }
 
-    /* check if a gene tree node is within certain child branches of the network node */
-    private boolean isWithinChildBranch(NetworkNode snNode, List<Integer> childBrNrs, Node gNode,
+    /* check if a gene tree node is within certain child branches of the network node,
+       speciesLeafNr is the species of a gene tree tip below the gene tree node */
+    private boolean isWithinChildBranch(NetworkNode snNode, List<Integer> childBrNrs, Node gNode, int speciesLeafNr,
                                         Embedding embedding, final double upper) {
+        // the gene lineage can only pass through a child branch which has the species of its tips below
+        if (!speciesNetworkInput.get().isDescendantOfAnyBranch(speciesLeafNr, childBrNrs))
+            return false;
+
         final int traversalNodeNr = snNode.getTraversalNumber();
         int withinBrNr;
         Node treNode = gNode;
@@ -1,23 +1,22 @@
 package speciesnetwork.operators;
 
 import java.util.*;
-
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
-import beast.base.evolution.alignment.Taxon;
-import beast.base.evolution.alignment.TaxonSet;
-import beast.base.evolution.tree.Node;
+import beast.base.util.MersenneTwisterFast;
 import beast.base.util.Randomizer;
 import speciesnetwork.EmbeddedTree;
 import speciesnetwork.Embedding;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
+import speciesnetwork.NetworkTopology;
 
 /**
  * @author Huw Ogilvie
@@ -33,49 +32,128 @@ public class RebuildEmbedding extends Operator {
     // operator input can be null so that the species network and gene trees are unchanged
     public final Input<Operator> operatorInput = new Input<>("operator",
             "Tree/Network operator to combine into RebuildEmbedding.");
+    public final Input<Integer> threadsInput = new Input<>("threads",
+            "Number of chunks the gene trees are split into, each rebuilt as one task on the common fork/join pool, " +
+            "which sets the number of threads used (default is 1).", 1);
+    public final Input<Boolean> incrementalInput = new Input<>("incremental",
+            "Only resample the embedding below the species nodes whose heights are changed by the operator, " +
+            "if the topology of the species network is unchanged (default is false).", false);
+    public final Input<Boolean> keepValidInput = new Input<>("keepValid",
+            "Keep the embedding of a gene tree not changed by the operator if the topology of the species network is " +
+            "unchanged and no species node height crosses a gene node height (default is false).", false);
+
+    // gene trees are rebuilt in chunks, each chunk with its own scratch state
+    private List<Callable<Boolean>> chunkTasks;
+    private ForkJoinPool forkJoinPool;
+    // random number stream of each gene tree, used when the gene trees are rebuilt in parallel
+    private MersenneTwisterFast[] geneRandoms;
+    // hastings ratio of the rebuilt embedding of each gene tree
+    private double[] geneLogHRs;
+    // structures derived from the species network topology (the heirs), shared with everything using the network
+    private NetworkTopology speciesNetworkTopology;
+    // gene trees which may be changed by the operator, their embeddings are always rebuilt from scratch
+    private boolean[] geneIsOperated;
 
-    // heirs are the gene tree leaf numbers below each gene tree node or species network node
-    private Multimap<Node, Integer> geneNodeHeirs;
-    private Multimap<NetworkNode, Integer> speciesNodeHeirs;
-    private int geneNodeCount;
-    private int traversalNodeCount;
+    /* In the incremental mode, the species network before the operation is kept to find out the species nodes whose
+       heights have changed, and to calculate the probabilities of the sub-embeddings being resampled.
+       It is also used to find out the gene trees whose embeddings can be kept as they are. */
+    private boolean incrementalRebuild;
+    private boolean keepValidRebuild;
+    private boolean topologyUnchanged;
+    private boolean gammasUnchanged;
+    private boolean anyNodeChanged;
+    private boolean[] changedNodes;
+    // lower and upper heights of each changed species node, before and after the operation
+    private double[] changedHeightRanges;
+    private int changedNodeCount;
+    private double[] oldSpeciesHeights;
+    private int[] oldParentNumbers;
+    private double[] oldGammaProbs;
+    private int[] oldGammaBranchNumbers;
+
+    // gene trees whose embeddings are kept in the last rebuild, and the counts over the run
+    private boolean[] geneIsKept;
+    private long keptEmbeddingCount = 0;
+    private long embeddingCount = 0;
 
     @Override
     public void initAndValidate() {
-        // nLoci = geneTreesInput.get().size();
-        geneNodeHeirs = HashMultimap.create();
-        speciesNodeHeirs = HashMultimap.create();
+        final int nLoci = geneTreesInput.get().size();
+        final int nThreads = Math.max(1, Math.min(threadsInput.get(), nLoci));
+
+        chunkTasks = new ArrayList<>(nThreads);
+        for (int t = 0; t < nThreads; t++) {
+            final GeneRebuilder rebuilder = new GeneRebuilder();
+            // contiguous chunks of gene trees
+            final int from = nLoci * t / nThreads;
+            final int to = nLoci * (t + 1) / nThreads;
+            chunkTasks.add(() -> rebuilder.rebuildEmbeddings(from, to));
+        }
+        if (nThreads > 1) {
+            /* The common pool has daemon threads shared by the whole run, so there is no pool of our own to shut down.
+               "threads" only sets the number of chunks, which bounds the number of tasks running at once. */
+            forkJoinPool = ForkJoinPool.commonPool();
+            /* Each gene tree draws from its own random number stream, seeded once in the order of the gene trees,
+               so the proposals are reproducible regardless of the order in which the threads finish. */
+            geneRandoms = new MersenneTwisterFast[nLoci];
+            for (int j = 0; j < nLoci; j++)
+                geneRandoms[j] = new MersenneTwisterFast(Randomizer.nextLong());
+        }
+
+        geneLogHRs = new double[nLoci];
+        geneIsKept = new boolean[nLoci];
+        geneIsOperated = new boolean[nLoci];
+        if (operatorInput.get() != null) {
+            final List<StateNode> operatedNodes = operatorInput.get().listStateNodes();
+            for (int j = 0; j < nLoci; j++)
+                geneIsOperated[j] = operatedNodes.contains(geneTreesInput.get().get(j));
+        }
     }
 
     @Override
     public double proposal() {
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+        final Network speciesNetwork = speciesNetworkInput.get();
+        final Operator operator = operatorInput.get();
+
+        // keep the species network before the operation to rebuild the embedding incrementally
+        final boolean compareNetworks = (incrementalInput.get() || keepValidInput.get()) && operator != null;
+        if (compareNetworks)
+            storeSpeciesNetwork(speciesNetwork);
 
         // make the operation if possible
         double operatorLogHR = 0.0;
-        if (operatorInput.get() != null) {
-            operatorLogHR = operatorInput.get().proposal();
+        if (operator != null) {
+            operatorLogHR = operator.proposal();
             if (operatorLogHR == Double.NEGATIVE_INFINITY)
                 return Double.NEGATIVE_INFINITY;
         }
 
         // Tell BEAST that *all* gene trees will be edited
         // doing this for all trees avoids Trie combinatorial explosions
-        double embeddingLogHR = 0.0;
         for (final EmbeddedTree geneTree: geneTrees) {
             geneTree.startEditing(this);
-            embeddingLogHR += Math.log(geneTree.embedding.probability) - Math.log(geneTree.embedding.probabilitySum);
         }
 
-        // then rebuild the embedding
-        if (!rebuildEmbedding())
+        // then rebuild the embedding, only below the changed species nodes if the topology is unchanged
+        if (compareNetworks)
+            findChangedNodes(speciesNetwork);
+        incrementalRebuild = compareNetworks && incrementalInput.get() && topologyUnchanged && gammasUnchanged;
+        keepValidRebuild = compareNetworks && keepValidInput.get() && topologyUnchanged;
+        if (!runChunkTasks())
             return Double.NEGATIVE_INFINITY;
 
-        // finalize hastings ratio of rebuild embedding
-        for (final EmbeddedTree geneTree: geneTrees) {
-            embeddingLogHR -= Math.log(geneTree.embedding.probability) - Math.log(geneTree.embedding.probabilitySum);
+        for (int j = 0; j < geneTrees.size(); j++) {
+            if (geneIsKept[j]) keptEmbeddingCount++;
+        }
+        embeddingCount += geneTrees.size();
+
+        // hastings ratio of rebuild embedding
+        double embeddingLogHR = 0.0;
+        for (int j = 0; j < geneTrees.size(); j++) {
+            embeddingLogHR += geneLogHRs[j];
         }
-        
+
         return operatorLogHR + embeddingLogHR;
     }
 
@@ -92,142 +170,547 @@ public class RebuildEmbedding extends Operator {
     }
 
     public boolean rebuildEmbedding() {
-        final List<EmbeddedTree> geneTrees = geneTreesInput.get();
-        final Network speciesNetwork = speciesNetworkInput.get();
-        traversalNodeCount = speciesNetwork.getInternalNodeCount();
+        incrementalRebuild = false;
+        keepValidRebuild = false;
+        return runChunkTasks();
+    }
 
-        for (EmbeddedTree geneTree: geneTrees) {
-            geneNodeCount = geneTree.getNodeCount();
-            getNodeHeirs(speciesNetwork, geneTree);
+    /**
+     * @return the proportion of gene tree embeddings kept without resampling in the proposals so far
+     */
+    public double getKeptEmbeddingRate() {
+        return embeddingCount == 0 ? 0.0 : (double) keptEmbeddingCount / embeddingCount;
+    }
 
-            final Embedding newEmbedding = recurseRebuild(geneTree.getRoot(), speciesNetwork.getRoot());
-            if (newEmbedding == null) return false;
+    private boolean runChunkTasks() {
+        speciesNetworkTopology = speciesNetworkInput.get().getTopology();
 
-            geneTree.embedding = newEmbedding;
+        boolean isValid = true;
+        try {
+            if (forkJoinPool != null) {
+                for (Future<Boolean> chunkIsValid : forkJoinPool.invokeAll(chunkTasks))
+                    isValid &= chunkIsValid.get();
+            } else {
+                for (Callable<Boolean> chunkTask : chunkTasks)
+                    isValid &= chunkTask.call();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
 
-        return true;
+        return isValid;
     }
 
-    private void getNodeHeirs(final Network speciesNetwork, final EmbeddedTree geneTree) {
-        // map of species network tip names to species network tip nodes
-        final Map<String, NetworkNode> speciesTipMap = new HashMap<>();
-        for (NetworkNode speciesNode: speciesNetwork.getLeafNodes()) {
-            final String speciesName = speciesNode.getLabel();
-            speciesTipMap.put(speciesName, speciesNode);
-        }
-
-        // map of gene tree tip names to species network tip nodes
-        final Map<String, NetworkNode> geneTipMap = new HashMap<>();
-        final TaxonSet taxonSuperSet = speciesNetwork.taxonSetInput.get();
-        for (Taxon species: taxonSuperSet.taxonsetInput.get()) {
-            final String speciesName = species.getID();
-            final NetworkNode speciesNode = speciesTipMap.get(speciesName);
-            final TaxonSet speciesTaxonSet = (TaxonSet) species;
-            for (Taxon geneTip: speciesTaxonSet.taxonsetInput.get()) {
-                final String gTipName = geneTip.getID();
-                geneTipMap.put(gTipName, speciesNode);
-            }
-        }
-
-        geneNodeHeirs.clear();
-        speciesNodeHeirs.clear();
-        for (final Node geneLeaf: geneTree.getExternalNodes()) {
-            final int gLeafNr = geneLeaf.getNr();
-            final String gLeafName = geneLeaf.getID();
-            final NetworkNode speciesLeaf = geneTipMap.get(gLeafName);
-            // the heir for each gene leaf node is itself
-            geneNodeHeirs.put(geneLeaf, gLeafNr);
-            // the heirs for each species leaf node is the associated gene leaf nodes
-            speciesNodeHeirs.put(speciesLeaf, gLeafNr);
-        }
-        // then map heirs for all internal nodes, recursively
-        recurseGeneHeirs(geneTree.getRoot());
-        recurseSpeciesHeirs(speciesNetwork.getRoot());
-    }
+    private void storeSpeciesNetwork(final Network speciesNetwork) {
+        final int nodeCount = speciesNetwork.getNodeCount();
+        final int branchCount = speciesNetwork.getBranchCount();
+        if (oldSpeciesHeights == null || oldSpeciesHeights.length != nodeCount) {
+            oldSpeciesHeights = new double[nodeCount];
+            oldGammaProbs = new double[nodeCount];
+            oldGammaBranchNumbers = new int[nodeCount];
+            changedNodes = new boolean[nodeCount];
+            changedHeightRanges = new double[2 * nodeCount];
+        }
+        if (oldParentNumbers == null || oldParentNumbers.length != branchCount)
+            oldParentNumbers = new int[branchCount];
 
-    private void recurseGeneHeirs(final Node gTreeNode) {
-        for (Node child : gTreeNode.getChildren()) {
-            recurseGeneHeirs(child);
-            geneNodeHeirs.putAll(gTreeNode, geneNodeHeirs.get(child));
+        for (int i = 0; i < nodeCount; i++) {
+            final NetworkNode node = speciesNetwork.getNode(i);
+            oldSpeciesHeights[i] = node.getHeight();
+            if (node.isReticulation()) {
+                oldGammaProbs[i] = node.getGammaProb();
+                oldGammaBranchNumbers[i] = node.gammaBranchNumber;
+            }
+        }
+        for (int b = 0; b < branchCount; b++) {
+            final NetworkNode node = speciesNetwork.getNode(speciesNetwork.getNodeNumber(b));
+            oldParentNumbers[b] = node.getParentByBranch(b).getNr();
         }
     }
 
-    private void recurseSpeciesHeirs(final NetworkNode sNetNode) {
-        for (NetworkNode child: sNetNode.getChildren()) {
-            recurseSpeciesHeirs(child);
-            speciesNodeHeirs.putAll(sNetNode, speciesNodeHeirs.get(child));
+    // find the species nodes whose heights have been changed, and whether anything else has been changed
+    private void findChangedNodes(final Network speciesNetwork) {
+        final int nodeCount = speciesNetwork.getNodeCount();
+        final int branchCount = speciesNetwork.getBranchCount();
+        topologyUnchanged = nodeCount == oldSpeciesHeights.length && branchCount == oldParentNumbers.length;
+        for (int b = 0; topologyUnchanged && b < branchCount; b++) {
+            final NetworkNode node = speciesNetwork.getNode(speciesNetwork.getNodeNumber(b));
+            topologyUnchanged = node.getParentByBranch(b).getNr() == oldParentNumbers[b];
+        }
+        if (!topologyUnchanged) return;
+
+        gammasUnchanged = true;
+        anyNodeChanged = false;
+        changedNodeCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            final NetworkNode node = speciesNetwork.getNode(i);
+            if (node.isReticulation() && (node.getGammaProb() != oldGammaProbs[i] ||
+                                          node.gammaBranchNumber != oldGammaBranchNumbers[i]))
+                gammasUnchanged = false;
+            // the origin is not part of any embedding
+            changedNodes[i] = !node.isOrigin() && node.getHeight() != oldSpeciesHeights[i];
+            if (changedNodes[i]) {
+                anyNodeChanged = true;
+                changedHeightRanges[2 * changedNodeCount] = Math.min(node.getHeight(), oldSpeciesHeights[i]);
+                changedHeightRanges[2 * changedNodeCount + 1] = Math.max(node.getHeight(), oldSpeciesHeights[i]);
+                changedNodeCount++;
+            }
         }
     }
 
-    // recursive, return value is a possible gene tree embedding, return null if no valid embedding
-    private Embedding recurseRebuild(final Node geneTreeNode, final NetworkNode speciesNetworkNode) {
-        if (geneTreeNode.isLeaf() && speciesNetworkNode.isLeaf()) {
-            // reached the gene tree tip and species tip (height >= 0)
-            return new Embedding(geneNodeCount, traversalNodeCount);
-        }
-        else if (geneTreeNode.getHeight() <= speciesNetworkNode.getHeight()) {
-            // current gene tree node occurs in a descendant branch of current species node
-            final int geneTreeNodeNr = geneTreeNode.getNr();
-            final int traversalNodeNr = speciesNetworkNode.getTraversalNumber();
-            final Collection<Integer> requiredHeirs = geneNodeHeirs.get(geneTreeNode);
-
-            // there are at most two possible embeddings for this gene lineage
-            final Embedding[] altEmbeddings = new Embedding[2];
-            double probSum = 0.0;
-            int i = 0;
-            for (Integer childBranchNr: speciesNetworkNode.childBranchNumbers) {
-                final NetworkNode childSpeciesNode = speciesNetworkNode.getChildByBranch(childBranchNr);
-                if (speciesNodeHeirs.get(childSpeciesNode).containsAll(requiredHeirs)) {
-                    // a valid embedding is possible, move on to find out
-                    altEmbeddings[i] = recurseRebuild(geneTreeNode, childSpeciesNode);
-                    if (altEmbeddings[i] == null) return null;
+    /* Scratch state used to rebuild the embeddings of a chunk of gene trees.
+       Each chunk is rebuilt by one thread at a time, and does not share any state with other chunks. */
+    private class GeneRebuilder {
+        /* heirs are the species network leaves below each gene tree node or species network node, stored as bit masks
+           of species leaf numbers (maskWords words per node, indexed by node number) */
+        private int maskWords;
+        private long[] geneNodeHeirs;
+        private long[] speciesNodeHeirs;
+        private int geneNodeCount;
+        private int traversalNodeCount;
+        // sub-embeddings to be resampled in the incremental mode, as (gene node number, species node number) pairs
+        private int[] frontierGeneNodes = new int[16];
+        private int[] frontierSpeciesNodes = new int[16];
+        private double[] frontierLogProbs = new double[16];
+        private int frontierSize;
+        // species node heights by node number, before the operation (oldSpeciesHeights) or after it (speciesHeights)
+        private double[] speciesHeights;
+        private double[] heights;
+        private int speciesNodeCount;
+        /* Memoized sums of probabilities of all possible embeddings of each gene lineage entering each species node,
+           indexed by gene node number * speciesNodeCount + species node number. An entry is valid if its stamp equals
+           the current stamp, which is renewed whenever the gene tree or the species node heights change. */
+        private double[] probabilitySums;
+        private int[] sumStamps;
+        private int stamp;
+        // random number stream of the gene tree being rebuilt, or null to use Randomizer
+        private MersenneTwisterFast random;
+        // traversal arrays of the gene tree being rebuilt, see EmbeddedTree.updateTraversalArrays()
+        private int[] genePreOrder;
+        private int[] geneChildNumbers;
+        private double[] geneNodeHeights;
+        /* (gene node number, species node) pairs still to be visited when walking down the gene tree, and separately
+           when summing the probabilities, as the sums may be needed in the middle of a walk. No method recurses
+           along the gene tree, so gene trees of any size can be rebuilt. */
+        private int[] geneStack = new int[16];
+        private NetworkNode[] speciesStack = new NetworkNode[16];
+        private int stackSize;
+        private int[] sumGeneStack = new int[16];
+        private NetworkNode[] sumSpeciesStack = new NetworkNode[16];
 
-                    // the lineage passes through current species node and goes to this species child branch (forward in time)
-                    altEmbeddings[i].setDirection(geneTreeNodeNr, traversalNodeNr, childBranchNr);
-
-                    // deal with traversal probabilities
-                    if (childSpeciesNode.isReticulation()) {
-                        double childGamma;
-                        if (childSpeciesNode.gammaBranchNumber.equals(childBranchNr))
-                            childGamma = childSpeciesNode.getGammaProb();
-                        else
-                            childGamma = 1.0 - childSpeciesNode.getGammaProb();
-                        altEmbeddings[i].probability *= childGamma;
-                        altEmbeddings[i].probabilitySum *= childGamma;
+        // rebuild the embeddings of gene trees from "from" to "to" - 1, return false if any has no valid embedding
+        private boolean rebuildEmbeddings(int from, int to) {
+            final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+            final Network speciesNetwork = speciesNetworkInput.get();
+            final NetworkNode speciesNetworkRoot = speciesNetwork.getRoot();
+            traversalNodeCount = speciesNetwork.getInternalNodeCount();
+            speciesNodeCount = speciesNetwork.getNodeCount();
+            // the species network heirs are shared by all gene trees and all operators
+            maskWords = speciesNetworkTopology.getMaskWords();
+            speciesNodeHeirs = speciesNetworkTopology.getNodeHeirs();
+            if (speciesHeights == null || speciesHeights.length != speciesNodeCount)
+                speciesHeights = new double[speciesNodeCount];
+            for (int i = 0; i < speciesNodeCount; i++)
+                speciesHeights[i] = speciesNetwork.getNode(i).getHeight();
+
+            for (int j = from; j < to; j++) {
+                final EmbeddedTree geneTree = geneTrees.get(j);
+                geneNodeCount = geneTree.getNodeCount();
+                geneTree.updateTraversalArrays();
+                genePreOrder = geneTree.getPreOrder();
+                geneChildNumbers = geneTree.getChildNumbers();
+                geneNodeHeights = geneTree.getNodeHeights();
+                random = geneRandoms == null ? null : geneRandoms[j];
+                geneIsKept[j] = keepValidRebuild && !geneIsOperated[j] && !crossesGeneNodes();
+                if (geneIsKept[j]) {
+                    /* The order of the gene node heights and the species node heights is unchanged, so the valid
+                       embeddings are the same as before the operation, and the current one does not need resampling.
+                       This only depends on the heights, not on the current embedding, so the reverse move keeps it too. */
+                    if (!gammasUnchanged) {
+                        // the probabilities of the embeddings have changed with the inheritance probabilities
+                        getGeneNodeHeirs(speciesNetwork, geneTree);
+                        initProbabilitySums();
+                        heights = speciesHeights;
+                        nextStamp();
+                        final Embedding embedding = geneTree.getEditableEmbedding();
+                        final int geneTreeRootNr = geneTree.getRoot().getNr();
+                        embedding.probability = getProbability(geneTreeRootNr, speciesNetworkRoot, embedding);
+                        embedding.probabilitySum = getProbabilitySum(geneTreeRootNr, speciesNetworkRoot);
+                    }
+                    geneLogHRs[j] = 0.0;
+                    continue;
+                }
+                if (incrementalRebuild && !geneIsOperated[j]) {
+                    if (!anyNodeChanged) {
+                        // the embedding and its probability are unchanged
+                        geneLogHRs[j] = 0.0;
+                    } else {
+                        getGeneNodeHeirs(speciesNetwork, geneTree);
+                        if (!rebuildIncrementally(speciesNetwork, geneTree, j)) return false;
                     }
+                    continue;
+                }
+                getGeneNodeHeirs(speciesNetwork, geneTree);
+                initProbabilitySums();
+
+                // sum the probabilities of all possible embeddings, then sample one of them
+                final Embedding embedding = geneTree.getEditableEmbedding();
+                final double oldLogProb = Math.log(embedding.probability) - Math.log(embedding.probabilitySum);
+                heights = speciesHeights;
+                nextStamp();
+                final int geneTreeRootNr = geneTree.getRoot().getNr();
+                final double probabilitySum = getProbabilitySum(geneTreeRootNr, speciesNetworkRoot);
+                if (!(probabilitySum > 0.0)) return false;  // for a valid embedding, should never go here
+
+                // write the sampled directions into the embedding matrix of the gene tree, in place
+                embedding.reset(traversalNodeCount);
+                final double probability = sampleEmbedding(geneTreeRootNr, speciesNetworkRoot, embedding);
+                embedding.probability = probability;
+                embedding.probabilitySum = probabilitySum;
+                geneLogHRs[j] = oldLogProb - (Math.log(probability) - Math.log(probabilitySum));
+            }
+
+            return true;
+        }
+
+        /* Resample the sub-embeddings of the gene lineages entering the changed species nodes, and keep the rest.
+           The resampled sub-embeddings are found by following the current embedding from the root, so they are
+           the same in the forward and the reverse move, and the hastings ratio only involves these sub-embeddings. */
+        private boolean rebuildIncrementally(final Network speciesNetwork, final EmbeddedTree geneTree, final int j) {
+            final Embedding embedding = geneTree.getEditableEmbedding();
+            final int geneTreeRootNr = geneTree.getRoot().getNr();
+            final NetworkNode speciesNetworkRoot = speciesNetwork.getRoot();
+            initProbabilitySums();
+
+            // the changed species nodes are reached following the species node heights after the operation
+            heights = speciesHeights;
+            findFrontier(geneTreeRootNr, speciesNetworkRoot, embedding);
+
+            // probabilities of the current sub-embeddings, given the species node heights before the operation
+            heights = oldSpeciesHeights;
+            nextStamp();
+            for (int k = 0; k < frontierSize; k++) {
+                final int geneTreeNodeNr = frontierGeneNodes[k];
+                final NetworkNode speciesNetworkNode = speciesNetwork.getNode(frontierSpeciesNodes[k]);
+                frontierLogProbs[k] = Math.log(getProbability(geneTreeNodeNr, speciesNetworkNode, embedding)) -
+                                      Math.log(getProbabilitySum(geneTreeNodeNr, speciesNetworkNode));
+            }
 
-                    probSum += altEmbeddings[i].probabilitySum;
-                    i++;
+            // resample the sub-embeddings given the new species node heights
+            heights = speciesHeights;
+            nextStamp();
+            double logHR = 0.0;
+            for (int k = 0; k < frontierSize; k++) {
+                final int geneTreeNodeNr = frontierGeneNodes[k];
+                final NetworkNode speciesNetworkNode = speciesNetwork.getNode(frontierSpeciesNodes[k]);
+                final double probabilitySum = getProbabilitySum(geneTreeNodeNr, speciesNetworkNode);
+                if (!(probabilitySum > 0.0)) return false;
+
+                clearSubEmbedding(geneTreeNodeNr, speciesNetworkNode, embedding);
+                final double probability = sampleEmbedding(geneTreeNodeNr, speciesNetworkNode, embedding);
+                logHR += frontierLogProbs[k] - (Math.log(probability) - Math.log(probabilitySum));
+            }
+
+            // the probabilities of the alternative embeddings have changed even if nothing has been resampled
+            embedding.probability = getProbability(geneTreeRootNr, speciesNetworkRoot, embedding);
+            embedding.probabilitySum = getProbabilitySum(geneTreeRootNr, speciesNetworkRoot);
+            geneLogHRs[j] = logHR;
+
+            return true;
+        }
+
+        // return true if the height of any gene node lies between the heights of a species node before and after the operation
+        private boolean crossesGeneNodes() {
+            for (int i = 0; i < geneNodeCount; i++) {
+                final double geneNodeHeight = geneNodeHeights[i];
+                for (int k = 0; k < changedNodeCount; k++) {
+                    if (geneNodeHeight >= changedHeightRanges[2 * k] && geneNodeHeight <= changedHeightRanges[2 * k + 1])
+                        return true;
                 }
             }
-            if (i == 0 || probSum == 0.0) return null;  // for a valid embedding, should never go here
+            return false;
+        }
 
-            // propose the embedding proportional to its probability
-            final double u = Randomizer.nextDouble() * probSum;
-            if (u < altEmbeddings[0].probabilitySum) {
-                altEmbeddings[0].probabilitySum = probSum;
-                return altEmbeddings[0];
-            } else {
-                altEmbeddings[1].probabilitySum = probSum;
-                return altEmbeddings[1];
-            }
-        }
-        else {
-            // current gene tree node occurs above current species node
-            // embed both children of gene tree node in this species network branch
-            Embedding embedding = null;
-            for (Node childTreeNode : geneTreeNode.getChildren()) {
-                 Embedding childEmbedding = recurseRebuild(childTreeNode, speciesNetworkNode);
-                 if (childEmbedding == null) {
-                     return null;
-                 } else if (embedding == null) {
-                     embedding = childEmbedding;
-                 } else {
-                     embedding.mergeWith(childEmbedding);
-                 }
-            }
-            return embedding;
+        private boolean isGeneLeaf(final int geneTreeNodeNr) {
+            return geneChildNumbers[2 * geneTreeNodeNr] < 0;
+        }
+
+        // whether the gene lineage passes through the species node, i.e. the gene node is in one of its child branches
+        private boolean isBelow(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode) {
+            return !(isGeneLeaf(geneTreeNodeNr) && speciesNetworkNode.isLeaf()) &&
+                    geneNodeHeights[geneTreeNodeNr] <= heights[speciesNetworkNode.getNr()];
+        }
+
+        private void push(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode) {
+            if (stackSize == geneStack.length) {
+                geneStack = Arrays.copyOf(geneStack, 2 * stackSize);
+                speciesStack = Arrays.copyOf(speciesStack, 2 * stackSize);
+            }
+            geneStack[stackSize] = geneTreeNodeNr;
+            speciesStack[stackSize] = speciesNetworkNode;
+            stackSize++;
+        }
+
+        // push the gene child nodes in reverse, so that they are visited in the same order as by a recursion
+        private void pushGeneChildren(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode) {
+            for (int c = 1; c >= 0; c--) {
+                final int childTreeNodeNr = geneChildNumbers[2 * geneTreeNodeNr + c];
+                if (childTreeNodeNr >= 0)
+                    push(childTreeNodeNr, speciesNetworkNode);
+            }
+        }
+
+        // follow the embedding from the gene lineage entering the species node down to the changed species nodes
+        private void findFrontier(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode, final Embedding embedding) {
+            frontierSize = 0;
+            stackSize = 0;
+            push(geneTreeNodeNr, speciesNetworkNode);
+            while (stackSize > 0) {
+                stackSize--;
+                final int geneNodeNr = geneStack[stackSize];
+                NetworkNode speciesNode = speciesStack[stackSize];
+                while (!changedNodes[speciesNode.getNr()] && isBelow(geneNodeNr, speciesNode)) {
+                    final int childBranchNr = embedding.getDirection(geneNodeNr, speciesNode.getTraversalNumber());
+                    speciesNode = speciesNode.getChildByBranch(childBranchNr);
+                }
+
+                if (changedNodes[speciesNode.getNr()]) {
+                    if (frontierSize == frontierGeneNodes.length) {
+                        frontierGeneNodes = Arrays.copyOf(frontierGeneNodes, 2 * frontierSize);
+                        frontierSpeciesNodes = Arrays.copyOf(frontierSpeciesNodes, 2 * frontierSize);
+                        frontierLogProbs = Arrays.copyOf(frontierLogProbs, 2 * frontierSize);
+                    }
+                    frontierGeneNodes[frontierSize] = geneNodeNr;
+                    frontierSpeciesNodes[frontierSize] = speciesNode.getNr();
+                    frontierSize++;
+                }
+                else if (!(isGeneLeaf(geneNodeNr) && speciesNode.isLeaf())) {
+                    pushGeneChildren(geneNodeNr, speciesNode);
+                }
+            }
+        }
+
+        // clear the directions of the gene lineage from the species node downwards, and of all its descendant lineages
+        private void clearSubEmbedding(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode, final Embedding embedding) {
+            NetworkNode speciesNode = speciesNetworkNode;
+            while (!speciesNode.isLeaf()) {
+                final int traversalNodeNr = speciesNode.getTraversalNumber();
+                final int childBranchNr = embedding.getDirection(geneTreeNodeNr, traversalNodeNr);
+                if (childBranchNr < 0) break;  // the gene tree node is in the parent branch of this species node
+                embedding.setDirection(geneTreeNodeNr, traversalNodeNr, -1);
+                speciesNode = speciesNode.getChildByBranch(childBranchNr);
+            }
+            stackSize = 0;
+            pushGeneChildren(geneTreeNodeNr, speciesNode);
+            while (stackSize > 0) {
+                stackSize--;
+                final int geneNodeNr = geneStack[stackSize];
+                embedding.clearDirections(geneNodeNr);
+                pushGeneChildren(geneNodeNr, speciesNode);
+            }
+        }
+
+        private void initProbabilitySums() {
+            final int tableSize = geneNodeCount * speciesNodeCount;
+            if (probabilitySums == null || probabilitySums.length < tableSize) {
+                probabilitySums = new double[tableSize];
+                sumStamps = new int[tableSize];
+            }
+        }
+
+        private void nextStamp() {
+            if (++stamp == 0) {
+                Arrays.fill(sumStamps, 0);
+                stamp = 1;
+            }
+        }
+
+        // probability of the given embedding of the gene lineage entering the species node
+        private double getProbability(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode, final Embedding embedding) {
+            double prob = 1.0;
+            stackSize = 0;
+            push(geneTreeNodeNr, speciesNetworkNode);
+            while (stackSize > 0) {
+                stackSize--;
+                final int geneNodeNr = geneStack[stackSize];
+                NetworkNode speciesNode = speciesStack[stackSize];
+                while (isBelow(geneNodeNr, speciesNode)) {
+                    final int childBranchNr = embedding.getDirection(geneNodeNr, speciesNode.getTraversalNumber());
+                    speciesNode = speciesNode.getChildByBranch(childBranchNr);
+                    prob *= getChildGamma(speciesNode, childBranchNr);
+                }
+                pushGeneChildren(geneNodeNr, speciesNode);
+            }
+            return prob;
+        }
+
+        /* Memoized, sum of probabilities of all possible embeddings of the gene lineage entering the species node.
+           The pairs are evaluated from a stack: a pair whose dependencies are not all memoized yet pushes them and
+           stays on the stack, and is evaluated again (in the same order as the recursion would) once they are done. */
+        private double getProbabilitySum(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode) {
+            final int key = geneTreeNodeNr * speciesNodeCount + speciesNetworkNode.getNr();
+            if (sumStamps[key] == stamp)
+                return probabilitySums[key];
+
+            int sumStackSize = 0;
+            sumGeneStack[sumStackSize] = geneTreeNodeNr;
+            sumSpeciesStack[sumStackSize] = speciesNetworkNode;
+            sumStackSize++;
+            while (sumStackSize > 0) {
+                final int geneNodeNr = sumGeneStack[sumStackSize - 1];
+                final NetworkNode speciesNode = sumSpeciesStack[sumStackSize - 1];
+                final int pairKey = geneNodeNr * speciesNodeCount + speciesNode.getNr();
+                if (sumStamps[pairKey] == stamp) {
+                    sumStackSize--;
+                    continue;
+                }
+                // make room for the dependencies of this pair, at most two in a binary network and gene tree
+                if (sumStackSize + 2 > sumGeneStack.length) {
+                    sumGeneStack = Arrays.copyOf(sumGeneStack, 2 * sumGeneStack.length);
+                    sumSpeciesStack = Arrays.copyOf(sumSpeciesStack, 2 * sumSpeciesStack.length);
+                }
+
+                final int pending = sumStackSize;
+                double probSum;
+                if (isGeneLeaf(geneNodeNr) && speciesNode.isLeaf()) {
+                    probSum = 1.0;
+                }
+                else if (geneNodeHeights[geneNodeNr] <= heights[speciesNode.getNr()]) {
+                    probSum = 0.0;
+                    for (Integer childBranchNr: speciesNode.childBranchNumbers) {
+                        final NetworkNode childSpeciesNode = speciesNode.getChildByBranch(childBranchNr);
+                        if (containsAllHeirs(childSpeciesNode, geneNodeNr)) {
+                            final int childKey = geneNodeNr * speciesNodeCount + childSpeciesNode.getNr();
+                            if (sumStamps[childKey] == stamp) {
+                                probSum += probabilitySums[childKey] * getChildGamma(childSpeciesNode, childBranchNr);
+                            } else {
+                                sumGeneStack[sumStackSize] = geneNodeNr;
+                                sumSpeciesStack[sumStackSize] = childSpeciesNode;
+                                sumStackSize++;
+                            }
+                        }
+                    }
+                }
+                else if (isGeneLeaf(geneNodeNr)) {
+                    probSum = 0.0;  // no valid embedding
+                }
+                else {
+                    probSum = 1.0;
+                    for (int c = 0; c < 2; c++) {
+                        final int childTreeNodeNr = geneChildNumbers[2 * geneNodeNr + c];
+                        if (childTreeNodeNr < 0) continue;
+                        final int childKey = childTreeNodeNr * speciesNodeCount + speciesNode.getNr();
+                        if (sumStamps[childKey] == stamp) {
+                            probSum *= probabilitySums[childKey];
+                        } else {
+                            sumGeneStack[sumStackSize] = childTreeNodeNr;
+                            sumSpeciesStack[sumStackSize] = speciesNode;
+                            sumStackSize++;
+                        }
+                    }
+                }
+
+                if (sumStackSize == pending) {
+                    // all the dependencies are memoized, so probSum is complete
+                    sumStamps[pairKey] = stamp;
+                    probabilitySums[pairKey] = probSum;
+                    sumStackSize--;
+                }
+            }
+
+            return probabilitySums[key];
+        }
+
+        // inheritance probability of the species child branch, 1 if the child is not a reticulation node
+        private double getChildGamma(final NetworkNode childSpeciesNode, final Integer childBranchNr) {
+            if (!childSpeciesNode.isReticulation())
+                return 1.0;
+            else if (childSpeciesNode.gammaBranchNumber.equals(childBranchNr))
+                return childSpeciesNode.getGammaProb();
+            else
+                return 1.0 - childSpeciesNode.getGammaProb();
+        }
+
+        private double nextDouble() {
+            return random == null ? Randomizer.nextDouble() : random.nextDouble();
+        }
+
+        private void getGeneNodeHeirs(final Network speciesNetwork, final EmbeddedTree geneTree) {
+            final int[] speciesLeafNumbers = geneTree.getSpeciesLeafNumbers(speciesNetwork);
+
+            if (geneNodeHeirs == null || geneNodeHeirs.length < geneNodeCount * maskWords)
+                geneNodeHeirs = new long[geneNodeCount * maskWords];
+            else
+                Arrays.fill(geneNodeHeirs, 0, geneNodeCount * maskWords, 0L);
+            for (int gLeafNr = 0; gLeafNr < speciesLeafNumbers.length; gLeafNr++) {
+                final int sLeafNr = speciesLeafNumbers[gLeafNr];
+                // the heir for each gene leaf node is the associated species leaf node
+                geneNodeHeirs[gLeafNr * maskWords + (sLeafNr >>> 6)] |= 1L << sLeafNr;
+            }
+            // then map heirs for all internal nodes, children before parents (reverse pre-order)
+            for (int k = geneNodeCount - 1; k >= 0; k--) {
+                final int gNodeNr = genePreOrder[k];
+                final int offset = gNodeNr * maskWords;
+                for (int c = 0; c < 2; c++) {
+                    final int childNr = geneChildNumbers[2 * gNodeNr + c];
+                    if (childNr < 0) continue;
+                    final int childOffset = childNr * maskWords;
+                    for (int w = 0; w < maskWords; w++)
+                        geneNodeHeirs[offset + w] |= geneNodeHeirs[childOffset + w];
+                }
+            }
+        }
+
+        // return true if all the heirs of the gene tree node are also heirs of the species network node
+        private boolean containsAllHeirs(final NetworkNode sNetNode, final int gTreeNodeNr) {
+            final int speciesOffset = sNetNode.getNr() * maskWords;
+            final int geneOffset = gTreeNodeNr * maskWords;
+            for (int w = 0; w < maskWords; w++) {
+                if ((geneNodeHeirs[geneOffset + w] & ~speciesNodeHeirs[speciesOffset + w]) != 0L)
+                    return false;
+            }
+            return true;
+        }
+
+        // sample an embedding of the gene lineage entering the species node, proportional to its probability,
+        // from the memoized sums of probabilities, write it into the embedding and return its probability
+        private double sampleEmbedding(final int geneTreeNodeNr, final NetworkNode speciesNetworkNode, final Embedding embedding) {
+            double prob = 1.0;
+            stackSize = 0;
+            push(geneTreeNodeNr, speciesNetworkNode);
+            while (stackSize > 0) {
+                stackSize--;
+                final int geneNodeNr = geneStack[stackSize];
+                NetworkNode speciesNode = speciesStack[stackSize];
+                while (isBelow(geneNodeNr, speciesNode)) {
+                    // current gene tree node occurs in a descendant branch of current species node
+                    // choose the species child branch proportional to the sum of probabilities of its embeddings
+                    final double u = nextDouble() * getProbabilitySum(geneNodeNr, speciesNode);
+                    double cumSum = 0.0;
+                    int chosenBranchNr = -1;
+                    NetworkNode chosenSpeciesNode = null;
+                    double chosenGamma = 0.0;
+                    for (Integer childBranchNr: speciesNode.childBranchNumbers) {
+                        final NetworkNode childSpeciesNode = speciesNode.getChildByBranch(childBranchNr);
+                        if (containsAllHeirs(childSpeciesNode, geneNodeNr)) {
+                            chosenBranchNr = childBranchNr;
+                            chosenSpeciesNode = childSpeciesNode;
+                            chosenGamma = getChildGamma(childSpeciesNode, childBranchNr);
+                            cumSum += getProbabilitySum(geneNodeNr, childSpeciesNode) * chosenGamma;
+                            if (u < cumSum) break;
+                        }
+                    }
+
+                    // the lineage passes through current species node and goes to this species child branch (forward in time)
+                    embedding.setDirection(geneNodeNr, speciesNode.getTraversalNumber(), chosenBranchNr);
+                    prob *= chosenGamma;
+                    speciesNode = chosenSpeciesNode;
+                }
+                // current gene tree node occurs above current species node (or both are tips)
+                // embed both children of gene tree node in this species network branch
+                pushGeneChildren(geneNodeNr, speciesNode);
+            }
+            return prob;
         }
     }
 }
@@ -1,6 +1,7 @@
 package speciesnetwork.simulator;
 
 import java.io.*;
+import java.util.BitSet;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -13,6 +14,7 @@ import beast.base.evolution.alignment.TaxonSet;
 import beast.base.util.Randomizer;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
+import speciesnetwork.NewickWriter;
 
 /**
  * @author Chi Zhang
@@ -64,8 +66,11 @@ public class BirthHybridSimulator extends Runnable {
             nrOfIterations = 1;
         else
             nrOfIterations = iterationsInput.get();
+        final NewickWriter newickWriter = new NewickWriter(null, false);
         for (int iteration = 1; iteration <= nrOfIterations; iteration++) {
-            out.println("tree SIM_" + iteration + " =" + simulate().toString() + ";");
+            out.print("tree SIM_" + iteration + " =");
+            newickWriter.write(simulate(), out);
+            out.println(";");
         }
         out.println("End;");
     }
@@ -214,18 +219,18 @@ public class BirthHybridSimulator extends Runnable {
             node.setNr(i);
             node.gammaBranchNumber = speciesNetwork.getBranchNumber(i);
         }
-        speciesNetwork.resetAllVisited();
-        setChildBranchNrs(speciesNetwork.getOrigin());
+        setChildBranchNrs(speciesNetwork.getOrigin(), new BitSet(speciesNetwork.getNodeCount()));
+        speciesNetwork.updateRelationships();
     }
 
-    private Integer setChildBranchNrs(NetworkNode node) {
-        if (node.isVisited()) {
+    private Integer setChildBranchNrs(NetworkNode node, BitSet visited) {
+        if (visited.get(node.getNr())) {
             return node.gammaBranchNumber + 1;
         } else {
             for (NetworkNode child: node.getChildren()) {
-                node.childBranchNumbers.add(setChildBranchNrs(child));
+                node.childBranchNumbers.add(setChildBranchNrs(child, visited));
             }
-            node.setVisited(true);
+            visited.set(node.getNr());
             return node.gammaBranchNumber;
         }
     }
@@ -20,6 +20,7 @@ import beast.base.util.Randomizer;
 import speciesnetwork.EmbeddedTree;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
+import speciesnetwork.NewickWriter;
 import speciesnetwork.SanityChecks;
 
 /**
@@ -148,13 +149,11 @@ public class CoalescentSimulator extends Runnable {
                 }
             }
 
-            // reset visited indicator
-            speciesNetwork.resetAllVisited();
             // initialize embedding matrix to -1 (no traversal)
-            geneTree.embedding.reset(traversalNodeCount);
+            geneTree.getEditableEmbedding().reset(traversalNodeCount);
             // simulate the gene tree
             nodeIndex = 0;
-            simulateGeneTree(speciesNetwork.getRoot(), geneTree);
+            simulateGeneTree(speciesNetwork.getRoot(), geneTree, new BitSet(speciesNetwork.getNodeCount()));
 
             // simulate alignment on the gene tree
             if (seqSimulators.size() > ig) {
@@ -164,14 +163,14 @@ public class CoalescentSimulator extends Runnable {
     }
 
     // recursively simulate lineages coalescent in each population
-    private void simulateGeneTree(NetworkNode snNode, EmbeddedTree geneTree) {
-        if (snNode.isVisited())
+    private void simulateGeneTree(NetworkNode snNode, EmbeddedTree geneTree, BitSet visited) {
+        if (visited.get(snNode.getNr()))
             return;
         for (NetworkNode c: snNode.getChildren()) {
-            simulateGeneTree(c, geneTree);
+            simulateGeneTree(c, geneTree, visited);
         }
 
-        snNode.setVisited(true);  // set visited indicator
+        visited.set(snNode.getNr());  // set visited indicator
 
         final Collection<Node> lineagesAtBottom = networkNodeGeneLineagesMap.get(snNode);
 
@@ -205,10 +204,10 @@ public class CoalescentSimulator extends Runnable {
             // update embedding
             final int traversalLParentNr = lParent.getTraversalNumber();
             for (final Node geneNode : lineagesAtLTop)
-            	geneTree.embedding.setDirection(geneNode.getNr(), traversalLParentNr, lBranchNumber);
+            	geneTree.getEditableEmbedding().setDirection(geneNode.getNr(), traversalLParentNr, lBranchNumber);
             final int traversalRParentNr = rParent.getTraversalNumber();
             for (final Node geneNode : lineagesAtRTop)
-            	geneTree.embedding.setDirection(geneNode.getNr(), traversalRParentNr, rBranchNumber);
+            	geneTree.getEditableEmbedding().setDirection(geneNode.getNr(), traversalRParentNr, rBranchNumber);
         }
         else {
             final double bottomHeight = snNode.getHeight();
@@ -230,7 +229,7 @@ public class CoalescentSimulator extends Runnable {
                 // update embedding
                 final int traversalParentNr = sParent.getTraversalNumber();
                 for (final Node geneNode : lineagesAtTop)
-                	geneTree.embedding.setDirection(geneNode.getNr(), traversalParentNr, sBranchNumber);
+                	geneTree.getEditableEmbedding().setDirection(geneNode.getNr(), traversalParentNr, sBranchNumber);
             }
         }
     }
@@ -315,8 +314,10 @@ public class CoalescentSimulator extends Runnable {
                     "    <map name=\"OneOnX\">beast.base.math.distributions.OneOnX</map>\n" +
                     "    <map name=\"prior\">beast.base.math.distributions.Prior</map>\n");
         // print initial species network
-        out.println("    <init spec=\"beast.base.evolution.tree.TreeParser\" id=\"newick:species\" IsLabelledNewick=\"true\" adjustTipHeights=\"false\"\n" +
-                    "          newick=\"" + speciesNetwork.getOrigin().toString(df, true) + "\"/>");
+        out.print("    <init spec=\"beast.base.evolution.tree.TreeParser\" id=\"newick:species\" IsLabelledNewick=\"true\" adjustTipHeights=\"false\"\n" +
+                  "          newick=\"");
+        new NewickWriter(df, true).write(speciesNetwork, out);
+        out.println("\"/>");
         // print initial/true gene trees
         out.println("    <!--");
         for (int i = 0; i < nrOfGeneTrees; i++) {
@@ -577,11 +578,14 @@ public class CoalescentSimulator extends Runnable {
     }
 
     private void writeSpeciesNetworks(String outputFileName) throws IOException {
+        final NewickWriter newickWriter = new NewickWriter(null, false);
         if (outputFileName == null) {
-            System.out.println(speciesNetwork.toString() + ";");
+            newickWriter.write(speciesNetwork, System.out);
+            System.out.println(";");
         } else {
             FileWriter fw = new FileWriter(outputFileName, true);
-            fw.write(speciesNetwork.toString() + ";\n");
+            newickWriter.write(speciesNetwork, fw);
+            fw.write(";\n");
             fw.close();
         }
     }
@@ -10,6 +10,7 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
 import speciesnetwork.Network;
+import speciesnetwork.NewickWriter;
 
 @Description("Logs backbone tree annotated with metadata")
 public class BackboneTreeLogger extends BEASTObject implements Loggable {
@@ -46,7 +47,7 @@ public class BackboneTreeLogger extends BEASTObject implements Loggable {
 
         // write out the backbone tree with meta data
         out.print("tree STATE_" + sample + " = ");
-        out.print(backbone.toString(df));
+        new NewickWriter(df, false).write(backbone, out);
         out.print(";");
     }
 
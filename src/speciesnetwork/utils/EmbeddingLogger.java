@@ -53,7 +53,6 @@ public class EmbeddingLogger extends CalculationNode implements Loggable, Functi
     @Override
     public double getArrayValue(int i) {
         final Embedding embedding = geneTreeInput.get().embedding;
-        final int[] e = embedding.getEmbedding();
-        return e[i];
+        return embedding.getDirection(i / embedding.traversalNodeCount, i % embedding.traversalNodeCount);
     }
 }
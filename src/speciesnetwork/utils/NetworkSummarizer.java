@@ -131,15 +131,13 @@ public class NetworkSummarizer extends Runnable {
 
             for (Network network: binnedNetworks.get(networkNr)) {
                 NetworkNode origin = network.getOrigin();
-                network.resetAllVisited();
-                collateParameters(origin, null, null, networkHeights, networkGammas);
+                collateParameters(origin, null, null, networkHeights, networkGammas, new BitSet(network.getNodeCount()));
             }
 
             for (Network network: binnedNetworks.get(networkNr)) {
                 NetworkNode origin = network.getOrigin();
                 origin.topologySupport = (double) allNetworkNrs.count(networkNr) / (double) allNetworkNrs.size();
-                network.resetAllVisited();
-                summarizeParameters(origin, null, null, networkHeights, networkGammas);
+                summarizeParameters(origin, null, null, networkHeights, networkGammas, new BitSet(network.getNodeCount()));
 
                 out.println(network.toString(df) + ";");
                 break;
@@ -217,7 +215,8 @@ public class NetworkSummarizer extends Runnable {
      * Collate all node heights and reticulation node gammas, for networks sharing a common topology
      */
     private void collateParameters(NetworkNode node, Integer parentSubnetworkNr, Integer parentBranchNr,
-                                   ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas) {
+                                   ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas,
+                                   BitSet visited) {
         final Integer subnetworkNr = node.subnetworkNr;
 
         if (node.isReticulation()) {
@@ -230,17 +229,17 @@ public class NetworkSummarizer extends Runnable {
                 gammas.get(subnetworkNr, parentSubnetworkNr).add(1.0 - nodeGamma);
         }
 
-        if (node.isVisited())
+        if (visited.get(node.getNr()))
             return;
         // mark visited to avoid duplicated recursion
-        node.setVisited(true);
+        visited.set(node.getNr());
 
         final Double nodeHeight = node.getHeight();
         heights.put(subnetworkNr, nodeHeight);
 
         for (Integer branchNr : node.childBranchNumbers) {
             final NetworkNode child = node.getChildByBranch(branchNr);
-            collateParameters(child, subnetworkNr, branchNr, heights, gammas);
+            collateParameters(child, subnetworkNr, branchNr, heights, gammas, visited);
         }
     }
 
@@ -248,7 +247,8 @@ public class NetworkSummarizer extends Runnable {
      * Summarize the node heights and gammas across all samples sharing the same network topology
      */
     private void summarizeParameters(NetworkNode node, Integer parentSubnetworkNr, Integer parentBranchNr,
-                                     ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas) {
+                                     ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas,
+                                     BitSet visited) {
         final Integer subnetworkNr = node.subnetworkNr;
 
         if (node.isReticulation() && node.gammaBranchNumber.equals(parentBranchNr)) {
@@ -269,10 +269,10 @@ public class NetworkSummarizer extends Runnable {
             }
         }
 
-        if (node.isVisited())
+        if (visited.get(node.getNr()))
             return;
         // mark visited to avoid duplicated recursion
-        node.setVisited(true);
+        visited.set(node.getNr());
 
         final List<Double> sampledHeights = heights.get(subnetworkNr);
         final double meanHeight = calculateMean(sampledHeights);
@@ -292,7 +292,7 @@ public class NetworkSummarizer extends Runnable {
 
         for (Integer branchNr: node.childBranchNumbers) {
             final NetworkNode child = node.getChildByBranch(branchNr);
-            summarizeParameters(child, subnetworkNr, branchNr, heights, gammas);
+            summarizeParameters(child, subnetworkNr, branchNr, heights, gammas, visited);
         }
     }
 
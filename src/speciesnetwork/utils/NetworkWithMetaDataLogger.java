@@ -10,6 +10,7 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
 import speciesnetwork.Network;
+import speciesnetwork.NewickWriter;
 
 @Description("Logs network annotated with metadata")
 public class NetworkWithMetaDataLogger extends BEASTObject implements Loggable {
@@ -45,7 +46,7 @@ public class NetworkWithMetaDataLogger extends BEASTObject implements Loggable {
 
         // write out the species network with meta data
         out.print("tree STATE_" + sample + " = ");
-        out.print(network.toString(df));
+        new NewickWriter(df, false).write(network, out);
         out.print(";");
     }
 
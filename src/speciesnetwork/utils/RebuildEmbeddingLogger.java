@@ -0,0 +1,54 @@
+package speciesnetwork.utils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.inference.CalculationNode;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import speciesnetwork.operators.RebuildEmbedding;
+
+@Description("Logs the proportion of gene tree embeddings kept without resampling by RebuildEmbedding operators")
+public class RebuildEmbeddingLogger extends CalculationNode implements Loggable, Function {
+    public final Input<List<RebuildEmbedding>> operatorsInput =
+            new Input<>("operator", "RebuildEmbedding operator to report.", new ArrayList<>());
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (RebuildEmbedding operator : operatorsInput.get())
+            out.print(operator.getID() + ".keptRate\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (RebuildEmbedding operator : operatorsInput.get())
+            out.print(operator.getKeptEmbeddingRate() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+    @Override
+    public int getDimension() {
+        return operatorsInput.get().size();
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int i) {
+        return operatorsInput.get().get(i).getKeptEmbeddingRate();
+    }
+}